@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * A {@link Path} along with its {@link BasicFileAttributes}, which are read exactly once.
+ * <p>
+ * Used by {@link TreeDef#forPathAttributes(java.util.function.Consumer)} so that walking
+ * and filtering a file tree doesn't need to hit the filesystem again for every query.
+ * A child which was listed by {@code forPathAttributes} holds on to its parent, so walking
+ * back up to the root doesn't read anything either.  Equality is based only on the path.
+ */
+public final class PathAttributes {
+	private final Path path;
+	private final BasicFileAttributes attributes;
+	/** The parent, or null if it hasn't been read yet. */
+	private PathAttributes parent;
+
+	private PathAttributes(Path path, BasicFileAttributes attributes) {
+		this.path = Objects.requireNonNull(path);
+		this.attributes = Objects.requireNonNull(attributes);
+	}
+
+	/** Creates a PathAttributes from attributes which have already been read. */
+	public static PathAttributes of(Path path, BasicFileAttributes attributes) {
+		return new PathAttributes(path, attributes);
+	}
+
+	/**
+	 * Reads the attributes of the given path, following symbolic links.
+	 * <p>
+	 * If the path is a broken symbolic link, the attributes of the link itself are returned.
+	 * Any other error, such as a missing file or a permission problem, is thrown.
+	 */
+	public static PathAttributes read(Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			// if it's a broken link, we'll settle for the link itself
+			if (!Files.isSymbolicLink(path)) {
+				throw e;
+			}
+			attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		}
+		return new PathAttributes(path, attributes);
+	}
+
+	/** Reads the attributes of the given child of this path, which will use this as its parent. */
+	PathAttributes readChild(Path child) throws IOException {
+		PathAttributes result = read(child);
+		result.parent = this;
+		return result;
+	}
+
+	/** Returns the parent of this path, reading its attributes the first time only, or null if this path has no parent. */
+	PathAttributes readParent() throws IOException {
+		if (parent == null) {
+			Path parentPath = path.getParent();
+			if (parentPath == null) {
+				return null;
+			}
+			parent = read(parentPath);
+		}
+		return parent;
+	}
+
+	/** Returns the path. */
+	public Path getPath() {
+		return path;
+	}
+
+	/** Returns the attributes of the path. */
+	public BasicFileAttributes getAttributes() {
+		return attributes;
+	}
+
+	/** Returns true if the path is a directory. */
+	public boolean isDirectory() {
+		return attributes.isDirectory();
+	}
+
+	/** Returns true if the path is a regular file. */
+	public boolean isRegularFile() {
+		return attributes.isRegularFile();
+	}
+
+	/** Returns the size of the file in bytes. */
+	public long size() {
+		return attributes.size();
+	}
+
+	/** Returns the time when the path was last modified. */
+	public FileTime lastModifiedTime() {
+		return attributes.lastModifiedTime();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (other instanceof PathAttributes) {
+			return path.equals(((PathAttributes) other).path);
+		} else {
+			return false;
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return path.toString();
+	}
+}
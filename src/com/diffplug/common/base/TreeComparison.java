@@ -16,9 +16,21 @@
 package com.diffplug.common.base;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 
@@ -53,29 +65,298 @@ public final class TreeComparison<E, A> {
 		return equals(expectedDef, expectedRoot, actualDef, actualRoot, compareFunc);
 	}
 
-	/** Recursively determines equality between two trees. */
+	/**
+	 * Returns true if the two trees are equal, by calling {@link Objects#equals(Object, Object)} on the results of each cache's mapper.
+	 * <p>
+	 * A pair of subtrees whose hashes differ is unequal without visiting either subtree, so once
+	 * the hashes are cached, two trees which differ are told apart at their roots.  After a local edit
+	 * (and {@link HashCache#invalidate(Object) invalidation}), rehashing costs O(depth &times; fan-out),
+	 * because every invalidated ancestor combines the cached hashes of all of its children.
+	 * <p>
+	 * Because different content can have the same {@code hashCode()}, equal hashes don't prove equality,
+	 * so two trees which are equal are still compared node-by-node, which costs O(n).  The exception is
+	 * a pair of equal nodes from the same {@link TreeDef}, whose subtrees are skipped entirely.
+	 */
+	public boolean isEqualHashedBy(HashCache<E> expectedHashes, HashCache<A> actualHashes) {
+		return equals(expectedDef, expectedRoot, actualDef, actualRoot, (expected, actual) -> {
+			return expectedHashes.hashOf(expected) == actualHashes.hashOf(actual)
+					&& Objects.equals(expectedHashes.mapper.apply(expected), actualHashes.mapper.apply(actual));
+		}, (expected, actual) -> expectedDef == actualDef && Objects.equals(expected, actual));
+	}
+
+	/** Determines equality between two trees, visiting the pairs of nodes in the same order as a depth-first recursion. */
+	@SuppressWarnings("unchecked")
 	private static <E, A> boolean equals(TreeDef<E> expectedDef, E expectedRoot, TreeDef<A> actualDef, A actualRoot, BiPredicate<? super E, ? super A> compareFunc) {
-		// compare the roots
 		if (!compareFunc.test(expectedRoot, actualRoot)) {
 			return false;
 		}
-		// compare the children lists
-		List<E> expectedChildren = expectedDef.childrenOf(expectedRoot);
-		List<A> actualChildren = actualDef.childrenOf(actualRoot);
-		if (expectedChildren.size() != actualChildren.size()) {
+		// the children lists which are being compared, and the index of the next pair within them
+		List<E> expectedSiblings = expectedDef.childrenOf(expectedRoot);
+		List<A> actualSiblings = actualDef.childrenOf(actualRoot);
+		int size = expectedSiblings.size();
+		if (size != actualSiblings.size()) {
 			return false;
 		}
-		// recurse on each pair of children
-		for (int i = 0; i < expectedChildren.size(); ++i) {
-			E expectedChild = expectedChildren.get(i);
-			A actualChild = actualChildren.get(i);
-			if (!equals(expectedDef, expectedChild, actualDef, actualChild, compareFunc)) {
+		int index = 0;
+		// a stack of the same for each ancestor of the current lists
+		List<?>[] expectedStack = new List<?>[16];
+		List<?>[] actualStack = new List<?>[16];
+		int[] indexStack = new int[16];
+		int depth = 0;
+		while (true) {
+			while (index < size) {
+				E expected = expectedSiblings.get(index);
+				A actual = actualSiblings.get(index);
+				++index;
+				if (!compareFunc.test(expected, actual)) {
+					return false;
+				}
+				List<E> expectedChildren = expectedDef.childrenOf(expected);
+				List<A> actualChildren = actualDef.childrenOf(actual);
+				int numChildren = expectedChildren.size();
+				if (numChildren != actualChildren.size()) {
+					return false;
+				}
+				if (numChildren != 0) {
+					if (depth == indexStack.length) {
+						expectedStack = Arrays.copyOf(expectedStack, 2 * depth);
+						actualStack = Arrays.copyOf(actualStack, 2 * depth);
+						indexStack = Arrays.copyOf(indexStack, 2 * depth);
+					}
+					expectedStack[depth] = expectedSiblings;
+					actualStack[depth] = actualSiblings;
+					indexStack[depth] = index;
+					++depth;
+					expectedSiblings = expectedChildren;
+					actualSiblings = actualChildren;
+					size = numChildren;
+					index = 0;
+				}
+			}
+			if (depth == 0) {
+				return true;
+			}
+			--depth;
+			expectedSiblings = (List<E>) expectedStack[depth];
+			actualSiblings = (List<A>) actualStack[depth];
+			index = indexStack[depth];
+			size = expectedSiblings.size();
+		}
+	}
+
+	/**
+	 * The same as {@link #equals(TreeDef, Object, TreeDef, Object, BiPredicate)}, except that the subtrees
+	 * below any pair for which {@code isKnownEqual} returns true are not visited.
+	 */
+	private static <E, A> boolean equals(TreeDef<E> expectedDef, E expectedRoot, TreeDef<A> actualDef, A actualRoot, BiPredicate<? super E, ? super A> compareFunc, BiPredicate<? super E, ? super A> isKnownEqual) {
+		// a stack of the children lists which are being compared, and the index of the next pair within each
+		List<List<E>> expectedLists = new ArrayList<>();
+		List<List<A>> actualLists = new ArrayList<>();
+		int[] indices = new int[16];
+		expectedLists.add(Collections.singletonList(expectedRoot));
+		actualLists.add(Collections.singletonList(actualRoot));
+		while (!expectedLists.isEmpty()) {
+			int top = expectedLists.size() - 1;
+			List<E> expectedSiblings = expectedLists.get(top);
+			if (indices[top] == expectedSiblings.size()) {
+				expectedLists.remove(top);
+				actualLists.remove(top);
+				continue;
+			}
+			int i = indices[top]++;
+			E expected = expectedSiblings.get(i);
+			A actual = actualLists.get(top).get(i);
+			if (isKnownEqual.test(expected, actual)) {
+				continue;
+			}
+			// compare the roots
+			if (!compareFunc.test(expected, actual)) {
+				return false;
+			}
+			// compare the children lists
+			List<E> expectedChildren = expectedDef.childrenOf(expected);
+			List<A> actualChildren = actualDef.childrenOf(actual);
+			if (expectedChildren.size() != actualChildren.size()) {
 				return false;
 			}
+			if (!expectedChildren.isEmpty()) {
+				if (expectedLists.size() == indices.length) {
+					indices = Arrays.copyOf(indices, 2 * indices.length);
+				}
+				indices[expectedLists.size()] = 0;
+				expectedLists.add(expectedChildren);
+				actualLists.add(actualChildren);
+			}
 		}
 		return true;
 	}
 
+	/** Returns the first mismatch between the two trees in depth-first order, based on the given {@link BiPredicate}. */
+	public Optional<Mismatch<E, A>> findMismatchBasedOn(BiPredicate<? super E, ? super A> compareFunc) {
+		MismatchTask<E, A> task = new MismatchTask<>(this, compareFunc, new AtomicReference<>(), expectedRoot, actualRoot, PathLink.ROOT, 0);
+		task.compute();
+		return Optional.ofNullable(task.found.get());
+	}
+
+	/**
+	 * Returns a mismatch between the two trees based on the given {@link BiPredicate}, comparing sibling subtrees in parallel.
+	 * <p>
+	 * The children of every pair of nodes shallower than {@code forkDepth} are compared as separate
+	 * fork-join tasks, and everything deeper is compared sequentially.  As soon as any task finds a
+	 * mismatch, all of the outstanding tasks stop, so the mismatch which is returned is whichever was
+	 * found first, which is not necessarily the first in depth-first order.  Both {@code TreeDef}s and
+	 * {@code compareFunc} must be safe to call from multiple threads.
+	 *
+	 * @param compareFunc	returns true if the given pair of nodes is equal
+	 * @param pool		the pool which will execute the comparison
+	 * @param forkDepth	pairs at this depth or deeper (the root is depth 0) are compared sequentially
+	 */
+	public Optional<Mismatch<E, A>> findMismatchBasedOnParallel(BiPredicate<? super E, ? super A> compareFunc, ForkJoinPool pool, int forkDepth) {
+		MismatchTask<E, A> task = new MismatchTask<>(this, compareFunc, new AtomicReference<>(), expectedRoot, actualRoot, PathLink.ROOT, forkDepth);
+		pool.invoke(task);
+		return Optional.ofNullable(task.found.get());
+	}
+
+	/**
+	 * Returns true if the two trees are equal based on the given {@link BiPredicate}, comparing sibling subtrees in parallel.
+	 * 
+	 * @see #findMismatchBasedOnParallel(BiPredicate, ForkJoinPool, int)
+	 */
+	public boolean isEqualBasedOnParallel(BiPredicate<? super E, ? super A> compareFunc, ForkJoinPool pool, int forkDepth) {
+		return !findMismatchBasedOnParallel(compareFunc, pool, forkDepth).isPresent();
+	}
+
+	/** A pair of nodes which differ, either in their content or in their number of children. */
+	public static final class Mismatch<E, A> {
+		private final E expected;
+		private final A actual;
+		private final List<Integer> path;
+
+		private Mismatch(E expected, A actual, List<Integer> path) {
+			this.expected = expected;
+			this.actual = actual;
+			this.path = path;
+		}
+
+		/** Returns the node from the expected tree. */
+		public E getExpected() {
+			return expected;
+		}
+
+		/** Returns the node from the actual tree. */
+		public A getActual() {
+			return actual;
+		}
+
+		/** Returns the index of each child on the way from the roots down to this mismatch, which is empty if the roots don't match. */
+		public List<Integer> getPath() {
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return "Mismatch at " + path + ": expected " + expected + ", actual " + actual;
+		}
+	}
+
+	/** A link in the path from the roots down to a pair of nodes, which is only turned into a list if there's a mismatch. */
+	private static final class PathLink {
+		/** The empty path, at the roots. */
+		static final PathLink ROOT = new PathLink(null, -1);
+
+		final PathLink parent;
+		final int index;
+
+		PathLink(PathLink parent, int index) {
+			this.parent = parent;
+			this.index = index;
+		}
+
+		static List<Integer> toList(PathLink link) {
+			List<Integer> path = new ArrayList<>();
+			for (; link != ROOT; link = link.parent) {
+				path.add(link.index);
+			}
+			Collections.reverse(path);
+			return Collections.unmodifiableList(path);
+		}
+	}
+
+	/** Searches a pair of subtrees for a mismatch, in parallel until {@code forkDepth} is exhausted, and stops as soon as {@code found} is set. */
+	@SuppressWarnings("serial")
+	private static final class MismatchTask<E, A> extends RecursiveAction {
+		private final TreeComparison<E, A> comparison;
+		private final BiPredicate<? super E, ? super A> compareFunc;
+		private final AtomicReference<Mismatch<E, A>> found;
+		private final E expected;
+		private final A actual;
+		private final PathLink path;
+		private final int forkDepth;
+
+		private MismatchTask(TreeComparison<E, A> comparison, BiPredicate<? super E, ? super A> compareFunc, AtomicReference<Mismatch<E, A>> found, E expected, A actual, PathLink path, int forkDepth) {
+			this.comparison = comparison;
+			this.compareFunc = compareFunc;
+			this.found = found;
+			this.expected = expected;
+			this.actual = actual;
+			this.path = path;
+			this.forkDepth = forkDepth;
+		}
+
+		@Override
+		protected void compute() {
+			if (forkDepth <= 0) {
+				compareSequentially();
+				return;
+			}
+			if (found.get() != null) {
+				return;
+			}
+			List<E> expectedChildren = TreeIterable.randomAccess(comparison.expectedDef.childrenOf(expected));
+			List<A> actualChildren = TreeIterable.randomAccess(comparison.actualDef.childrenOf(actual));
+			if (!compareFunc.test(expected, actual) || expectedChildren.size() != actualChildren.size()) {
+				found.compareAndSet(null, new Mismatch<>(expected, actual, PathLink.toList(path)));
+				return;
+			}
+			List<MismatchTask<E, A>> tasks = new ArrayList<>(expectedChildren.size());
+			for (int i = 0; i < expectedChildren.size(); ++i) {
+				tasks.add(new MismatchTask<>(comparison, compareFunc, found, expectedChildren.get(i), actualChildren.get(i), new PathLink(path, i), forkDepth - 1));
+			}
+			invokeAll(tasks);
+		}
+
+		/** Compares the pairs in the same order as a depth-first recursion, checking for cancellation before each one. */
+		private void compareSequentially() {
+			// a stack of node pairs
+			Deque<E> expectedStack = new ArrayDeque<>();
+			Deque<A> actualStack = new ArrayDeque<>();
+			Deque<PathLink> pathStack = new ArrayDeque<>();
+			expectedStack.push(expected);
+			actualStack.push(actual);
+			pathStack.push(path);
+			while (!expectedStack.isEmpty() && found.get() == null) {
+				E expectedNode = expectedStack.pop();
+				A actualNode = actualStack.pop();
+				PathLink link = pathStack.pop();
+				List<E> expectedChildren = comparison.expectedDef.childrenOf(expectedNode);
+				List<A> actualChildren = comparison.actualDef.childrenOf(actualNode);
+				if (!compareFunc.test(expectedNode, actualNode) || expectedChildren.size() != actualChildren.size()) {
+					found.compareAndSet(null, new Mismatch<>(expectedNode, actualNode, PathLink.toList(link)));
+					return;
+				}
+				// push each pair of children in reverse, so that the first pair is compared first
+				ListIterator<E> expectedIter = expectedChildren.listIterator(expectedChildren.size());
+				ListIterator<A> actualIter = actualChildren.listIterator(actualChildren.size());
+				while (expectedIter.hasPrevious()) {
+					int index = expectedIter.previousIndex();
+					expectedStack.push(expectedIter.previous());
+					actualStack.push(actualIter.previous());
+					pathStack.push(new PathLink(link, index));
+				}
+			}
+		}
+	}
+
 	/**
 	 * Asserts that the trees are equal, by calling {@link Objects#equals(Object, Object)} on the results of both mappers.
 	 * 
@@ -98,6 +379,17 @@ public final class TreeComparison<E, A> {
 		}
 	}
 
+	/**
+	 * Asserts that the trees are equal, by calling {@link Objects#equals(Object, Object)} on the results of each cache's mapper.
+	 * 
+	 * @see #isEqualHashedBy(HashCache, HashCache)
+	 */
+	public void assertEqualHashedBy(HashCache<E> expectedHashes, HashCache<A> actualHashes) {
+		if (!isEqualHashedBy(expectedHashes, actualHashes)) {
+			throwAssertionError();
+		}
+	}
+
 	/** Decorates errors thrown by any assertions with the given functions. */
 	public TreeComparison<E, A> decorateErrorsWith(Function<? super E, String> expectedToString, Function<? super A, String> actualToString) {
 		this.expectedToString = expectedToString;
@@ -222,4 +514,99 @@ public final class TreeComparison<E, A> {
 	public static <T> SameType<T> of(TreeNode<T> expected, TreeNode<T> actual) {
 		return of(TreeNode.treeDef(), expected, TreeNode.treeDef(), actual).mapToSame(TreeNode::getContent, TreeNode::getContent);
 	}
+
+	/**
+	 * Creates a {@link HashCache} for the given tree, which hashes each node using
+	 * {@code mapper}, the same way {@link #isEqualMappedBy(Function, Function)} compares them.
+	 */
+	public static <T> HashCache<T> hashCache(TreeDef<T> treeDef, Function<? super T, ?> mapper) {
+		return new HashCache<>(treeDef, mapper);
+	}
+
+	/**
+	 * A cache of the hash of every subtree in a tree, created by {@link TreeComparison#hashCache(TreeDef, Function)}.
+	 * <p>
+	 * The hash of a subtree combines the {@code hashCode()} of its mapped root with the hashes of its
+	 * children, so it only needs to be computed once.  If the tree changes, the changed node must be
+	 * {@link #invalidate(Object) invalidated}.  The cache is not safe to use from multiple threads.
+	 * <p>
+	 * Nodes are keyed by {@code equals()}, so the cache works for a {@link TreeDef} which creates new but equal
+	 * nodes every time, such as {@link TreeDef#forPath(java.util.function.Consumer)} or {@link TreeSnapshot#treeDef()}.
+	 */
+	public static final class HashCache<T> {
+		private final TreeDef<T> treeDef;
+		private final Function<? super T, ?> mapper;
+		private final Map<T, Integer> hashes = new HashMap<>();
+
+		private HashCache(TreeDef<T> treeDef, Function<? super T, ?> mapper) {
+			this.treeDef = treeDef;
+			this.mapper = mapper;
+		}
+
+		/** Returns the hash of the subtree rooted at the given node, computing it only if it hasn't already been cached. */
+		public int hashOf(T node) {
+			Integer cached = hashes.get(node);
+			if (cached != null) {
+				return cached;
+			}
+			Deque<HashFrame<T>> stack = new ArrayDeque<>();
+			stack.push(new HashFrame<>(node, treeDef.childIterator(node), Objects.hashCode(mapper.apply(node))));
+			while (true) {
+				HashFrame<T> frame = stack.peek();
+				if (frame.children.hasNext()) {
+					T child = frame.children.next();
+					Integer childHash = hashes.get(child);
+					if (childHash != null) {
+						frame.hash = 31 * frame.hash + childHash;
+					} else {
+						stack.push(new HashFrame<>(child, treeDef.childIterator(child), Objects.hashCode(mapper.apply(child))));
+					}
+				} else {
+					stack.pop();
+					hashes.put(frame.node, frame.hash);
+					if (stack.isEmpty()) {
+						return frame.hash;
+					}
+					HashFrame<T> parent = stack.peek();
+					parent.hash = 31 * parent.hash + frame.hash;
+				}
+			}
+		}
+
+		/**
+		 * Discards the cached hash of the given node, which must be called when its content or children change.
+		 * <p>
+		 * If the tree is a {@link TreeDef.Parented}, then the hashes of its ancestors are discarded too.  Otherwise,
+		 * each of its ancestors must also be invalidated.
+		 */
+		public void invalidate(T node) {
+			hashes.remove(node);
+			if (treeDef instanceof TreeDef.Parented) {
+				TreeDef.Parented<T> parented = (TreeDef.Parented<T>) treeDef;
+				T parent = parented.parentOf(node);
+				while (parent != null) {
+					hashes.remove(parent);
+					parent = parented.parentOf(parent);
+				}
+			}
+		}
+
+		/** Discards every cached hash. */
+		public void invalidateAll() {
+			hashes.clear();
+		}
+	}
+
+	/** A node whose subtree is in the process of being hashed by {@link HashCache#hashOf(Object)}. */
+	private static final class HashFrame<T> {
+		final T node;
+		final Iterator<T> children;
+		int hash;
+
+		HashFrame(T node, Iterator<T> children, int hash) {
+			this.node = node;
+			this.children = children;
+			this.hash = hash;
+		}
+	}
 }
@@ -16,11 +16,16 @@
 package com.diffplug.common.base;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -28,6 +33,9 @@ import java.util.stream.Collectors;
 
 /**
  * A function which defines a tree structure.
+ * <p>
+ * The algorithms which walk a {@code TreeDef} use an explicit stack rather than
+ * recursion, so that deep trees can't overflow the call stack.
  * @see TreeStream
  * @see TreeQuery
  * @see TreeComparison
@@ -39,11 +47,48 @@ public interface TreeDef<T> {
 	/** Returns all the children of the given node. */
 	List<T> childrenOf(T node);
 
+	/**
+	 * Returns an iterator over the children of the given node.
+	 * <p>
+	 * The default implementation iterates over {@link #childrenOf(Object)}, but a
+	 * {@link TreeDef.Lazy} can produce its children one at a time.
+	 */
+	default Iterator<T> childIterator(T node) {
+		return childrenOf(node).iterator();
+	}
+
 	/** Creates a new TreeDef which whose {@code childrenOf} method is filtered by the given predicate. */
 	default TreeDef<T> filter(Predicate<T> predicate) {
 		return TreeDef.of(node -> filteredList(childrenOf(node), predicate));
 	}
 
+	/**
+	 * Creates a new TreeDef which memoizes the results of {@code childrenOf}, keeping at most
+	 * {@code maxEntries} of the most recently used results.
+	 * <p>
+	 * Useful for expensive TreeDefs (reflection, remote calls, the filesystem) which are
+	 * queried repeatedly.  The cached lists are unmodifiable, and the returned TreeDef is
+	 * safe to use from multiple threads, so long as this TreeDef is.
+	 */
+	default TreeDef.Cached<T> cached(int maxEntries) {
+		return new TreeDefCache<>(this, maxEntries);
+	}
+
+	/** A TreeDef which memoizes its results, created by {@link TreeDef#cached(int)}. */
+	public interface Cached<T> extends TreeDef<T> {
+		/** Returns the number of queries which were answered from the cache. */
+		long hitCount();
+
+		/** Returns the number of queries which had to be passed to the underlying TreeDef. */
+		long missCount();
+
+		/** Removes every cached result for the given node. */
+		void invalidate(T node);
+
+		/** Removes every cached result. */
+		void invalidateAll();
+	}
+
 	/** Creates a TreeDef which is implemented by the given function. */
 	public static <T> TreeDef<T> of(Function<T, List<T>> childFunc) {
 		return new TreeDef<T>() {
@@ -54,6 +99,41 @@ public interface TreeDef<T> {
 		};
 	}
 
+	/**
+	 * A TreeDef whose children are produced one at a time by an {@link Iterator}, for nodes with a
+	 * huge number of children (a directory with a million entries, a database-backed node, etc.).
+	 * <p>
+	 * {@link TreeIterable}, {@link TreeStream} and {@link TreeQuery#findByPath(TreeDef, Object, List, java.util.function.BiPredicate)}
+	 * pull children from {@link #childIterator(Object)} only as they need them, so a traversal can
+	 * start producing results before a node's children have all been enumerated.  Algorithms which
+	 * need the whole list use {@link #childrenOf(Object)}, which collects the iterator into a list.
+	 */
+	@FunctionalInterface
+	public interface Lazy<T> extends TreeDef<T> {
+		/** Returns an iterator over the children of the given node. */
+		@Override
+		Iterator<T> childIterator(T node);
+
+		/** Returns all the children of the given node, by exhausting {@link #childIterator(Object)}. */
+		@Override
+		default List<T> childrenOf(T node) {
+			List<T> children = new ArrayList<>();
+			childIterator(node).forEachRemaining(children::add);
+			return children;
+		}
+
+		/** Creates a new {@code TreeDef.Lazy} whose {@code childIterator} method is lazily filtered by the given predicate. */
+		@Override
+		default Lazy<T> filter(Predicate<T> predicate) {
+			return node -> filteredIterator(childIterator(node), predicate);
+		}
+
+		/** Creates a {@code TreeDef.Lazy} which is implemented by the given function. */
+		public static <T> TreeDef.Lazy<T> of(Function<T, Iterator<T>> childFunc) {
+			return childFunc::apply;
+		}
+	}
+
 	/**
 	 * A pair of functions which define a doubly-linked tree, where nodes know about both their parent and their children.
 	 * <p>
@@ -79,6 +159,21 @@ public interface TreeDef<T> {
 			});
 		}
 
+		/**
+		 * Creates a new {@code TreeDef.Parented} which memoizes the results of {@code childrenOf}
+		 * and {@code parentOf}, keeping at most {@code maxEntries} of the most recently used
+		 * results for each.
+		 *
+		 * @see TreeDef#cached(int)
+		 */
+		@Override
+		default Parented.Cached<T> cached(int maxEntries) {
+			return new TreeDefCache.Parented<>(this, maxEntries);
+		}
+
+		/** A {@code TreeDef.Parented} which memoizes its results, created by {@link Parented#cached(int)}. */
+		public interface Cached<T> extends TreeDef.Cached<T>, Parented<T> {}
+
 		/** Creates a new {@code TreeDef.Parented} which is implemented by the two given functions. */
 		public static <T> TreeDef.Parented<T> of(Function<T, List<T>> childFunc, Function<T, T> parentFunc) {
 			return new TreeDef.Parented<T>() {
@@ -100,6 +195,37 @@ public interface TreeDef<T> {
 		return unfiltered.stream().filter(filter).collect(Collectors.toList());
 	}
 
+	/** Returns a lazily filtered version of the given iterator. */
+	static <T> Iterator<T> filteredIterator(Iterator<T> unfiltered, Predicate<T> filter) {
+		return new Iterator<T>() {
+			T next;
+			boolean hasNext;
+
+			@Override
+			public boolean hasNext() {
+				while (!hasNext && unfiltered.hasNext()) {
+					T candidate = unfiltered.next();
+					if (filter.test(candidate)) {
+						next = candidate;
+						hasNext = true;
+					}
+				}
+				return hasNext;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				hasNext = false;
+				T result = next;
+				next = null;
+				return result;
+			}
+		};
+	}
+
 	/** An instance of {@code TreeDef.Parented} for {@link File}. */
 	public static TreeDef.Parented<File> forFile(Consumer<Throwable> errorPolicy) {
 		Errors.Handling errors = Errors.createHandling(errorPolicy);
@@ -116,13 +242,22 @@ public interface TreeDef<T> {
 				}, null));
 	}
 
-	/** An instance of {@code TreeDef.Parented} for {@link Path}. */
+	/**
+	 * An instance of {@code TreeDef.Parented} for {@link Path}.
+	 * <p>
+	 * Directories are listed with a {@link DirectoryStream}, which is closed before {@code childrenOf} returns.
+	 * To walk a large directory tree on multiple threads, see {@link TreeStream#parallelDiscover(TreeDef, Object, java.util.concurrent.ForkJoinPool)}.
+	 */
 	public static TreeDef.Parented<Path> forPath(Consumer<Throwable> errorPolicy) {
 		Errors.Handling errors = Errors.createHandling(errorPolicy);
 		return TreeDef.Parented.of(
 				path -> errors.<List<Path>> getWithDefault(() -> {
 					if (Files.isDirectory(path)) {
-						return Files.list(path).collect(Collectors.toList());
+						List<Path> children = new ArrayList<>();
+						try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+							stream.forEach(children::add);
+						}
+						return children;
 					} else {
 						return Collections.emptyList();
 					}
@@ -131,4 +266,47 @@ public interface TreeDef<T> {
 					return path.getParent();
 				}, null));
 	}
+
+	/**
+	 * An instance of {@code TreeDef.Parented} for {@link PathAttributes}, which reads the attributes of
+	 * every path exactly once, when its parent's children are listed.
+	 * <p>
+	 * Use {@link PathAttributes#read(Path)} to create the root of the walk.  Predicates which
+	 * filter on size, modification time, etc. can then use the attributes which were read
+	 * during the walk, rather than hitting the filesystem again.  Every listed child holds
+	 * its parent, and the parents above the root of the walk are read the first time they're
+	 * needed, so queries such as {@link TreeQuery#root} don't read anything twice.
+	 * <p>
+	 * An error reading the attributes of a child is passed to {@code errorPolicy}, and that child is skipped.
+	 * An error reading the attributes of a parent is passed to {@code errorPolicy} and then thrown, because
+	 * skipping it would make the node look like a root.
+	 */
+	public static TreeDef.Parented<PathAttributes> forPathAttributes(Consumer<Throwable> errorPolicy) {
+		Errors.Handling errors = Errors.createHandling(errorPolicy);
+		return TreeDef.Parented.of(
+				node -> errors.<List<PathAttributes>> getWithDefault(() -> {
+					if (node.isDirectory()) {
+						List<PathAttributes> children = new ArrayList<>();
+						try (DirectoryStream<Path> stream = Files.newDirectoryStream(node.getPath())) {
+							for (Path child : stream) {
+								PathAttributes childAttributes = errors.getWithDefault(() -> node.readChild(child), null);
+								if (childAttributes != null) {
+									children.add(childAttributes);
+								}
+							}
+						}
+						return children;
+					} else {
+						return Collections.emptyList();
+					}
+				}, Collections.emptyList()),
+				node -> {
+					try {
+						return node.readParent();
+					} catch (IOException e) {
+						errors.accept(e);
+						throw Errors.asRuntime(e);
+					}
+				});
+	}
 }
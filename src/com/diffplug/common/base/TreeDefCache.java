@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/** Implementation of {@link TreeDef.Cached}, with a size-bounded LRU cache for {@code childrenOf}. */
+class TreeDefCache<T> implements TreeDef.Cached<T> {
+	private final TreeDef<T> delegate;
+	private final Lru<T, List<T>> children;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	TreeDefCache(TreeDef<T> delegate, int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive, was " + maxEntries);
+		}
+		this.delegate = delegate;
+		this.children = new Lru<>(maxEntries);
+	}
+
+	@Override
+	public List<T> childrenOf(T node) {
+		return lookup(children, node, n -> Collections.unmodifiableList(delegate.childrenOf(n)));
+	}
+
+	/** Returns the cached value for the given key, computing it if necessary. */
+	<V> V lookup(Lru<T, V> cache, T key, Function<T, V> compute) {
+		V value;
+		synchronized (cache) {
+			value = cache.get(key);
+		}
+		if (value != null) {
+			hits.increment();
+			return value;
+		}
+		misses.increment();
+		// compute outside of the lock, so that slow queries don't block other readers
+		value = compute.apply(key);
+		synchronized (cache) {
+			cache.put(key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	@Override
+	public long missCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public void invalidate(T node) {
+		synchronized (children) {
+			children.remove(node);
+		}
+	}
+
+	@Override
+	public void invalidateAll() {
+		synchronized (children) {
+			children.clear();
+		}
+	}
+
+	/** A LinkedHashMap in access order which evicts its eldest entry after {@code maxEntries}. */
+	@SuppressWarnings("serial")
+	static final class Lru<K, V> extends LinkedHashMap<K, V> {
+		private final int maxEntries;
+
+		Lru(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	/** Implementation of {@link TreeDef.Parented.Cached}, which also caches {@code parentOf}. */
+	static final class Parented<T> extends TreeDefCache<T> implements TreeDef.Parented.Cached<T> {
+		/** Marks a cached null parent. */
+		private static final Object NO_PARENT = new Object();
+
+		private final TreeDef.Parented<T> delegate;
+		private final Lru<T, Object> parents;
+
+		Parented(TreeDef.Parented<T> delegate, int maxEntries) {
+			super(delegate, maxEntries);
+			this.delegate = delegate;
+			this.parents = new Lru<>(maxEntries);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T parentOf(T node) {
+			Object parent = lookup(parents, node, n -> {
+				T result = delegate.parentOf(n);
+				return result == null ? NO_PARENT : result;
+			});
+			return parent == NO_PARENT ? null : (T) parent;
+		}
+
+		@Override
+		public void invalidate(T node) {
+			super.invalidate(node);
+			synchronized (parents) {
+				parents.remove(node);
+			}
+		}
+
+		@Override
+		public void invalidateAll() {
+			super.invalidateAll();
+			synchronized (parents) {
+				parents.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A mechanism for computing the differences between two trees as a stream of {@link Edit}s.
+ * <p>
+ * The roots of the two trees are always matched to each other.  Within each pair of matched
+ * nodes, their children are matched by key, and the children which don't match are
+ * {@link Edit.Type#DELETE deleted} or {@link Edit.Type#INSERT inserted} as entire subtrees.
+ * The fewest matched children which must be {@link Edit.Type#MOVE moved} to restore their
+ * order are found using a longest increasing subsequence, so each pair of children lists
+ * costs O(n log n), and the edits are computed lazily as the stream is consumed.
+ * <p>
+ * Because children are only matched within their parents, a node which has moved to a
+ * different parent appears as a {@code DELETE} and an {@code INSERT}.
+ */
+public final class TreeDiff<E, A> {
+	/** The tree we expected to get. */
+	private final TreeDef<E> expectedDef;
+	private final E expectedRoot;
+	/** The tree we actually got. */
+	private final TreeDef<A> actualDef;
+	private final A actualRoot;
+
+	private TreeDiff(TreeDef<E> expectedDef, E expectedRoot, TreeDef<A> actualDef, A actualRoot) {
+		this.expectedDef = expectedDef;
+		this.expectedRoot = expectedRoot;
+		this.actualDef = actualDef;
+		this.actualRoot = actualRoot;
+	}
+
+	/**
+	 * Returns the edits which turn the expected tree into the actual tree, matching children whose
+	 * keys are {@link Objects#equals(Object, Object) equal}.  Matched nodes are never {@link Edit.Type#UPDATE updated}.
+	 */
+	public Stream<Edit<E, A>> editsKeyedBy(Function<? super E, ?> expectedKey, Function<? super A, ?> actualKey) {
+		return editsKeyedBy(expectedKey, actualKey, (expected, actual) -> true);
+	}
+
+	/**
+	 * Returns the edits which turn the expected tree into the actual tree, matching children whose
+	 * keys are {@link Objects#equals(Object, Object) equal}, and {@link Edit.Type#UPDATE updating}
+	 * the matched nodes for which {@code isUnchanged} returns false.
+	 */
+	public Stream<Edit<E, A>> editsKeyedBy(Function<? super E, ?> expectedKey, Function<? super A, ?> actualKey, BiPredicate<? super E, ? super A> isUnchanged) {
+		EditIterator<E, A> edits = new EditIterator<>(this, expectedKey, actualKey, isUnchanged);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(edits, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/** Lazily computes the edits for one pair of matched nodes at a time, in the same order as a depth-first recursion. */
+	private static final class EditIterator<E, A> implements Iterator<Edit<E, A>> {
+		private final TreeDiff<E, A> diff;
+		private final Function<? super E, ?> expectedKey;
+		private final Function<? super A, ?> actualKey;
+		private final BiPredicate<? super E, ? super A> isUnchanged;
+		// a stack of matched pairs
+		private final Deque<E> expectedStack = new ArrayDeque<>();
+		private final Deque<A> actualStack = new ArrayDeque<>();
+		/** Edits which have been computed, but not yet returned. */
+		private final Deque<Edit<E, A>> pending = new ArrayDeque<>();
+
+		EditIterator(TreeDiff<E, A> diff, Function<? super E, ?> expectedKey, Function<? super A, ?> actualKey, BiPredicate<? super E, ? super A> isUnchanged) {
+			this.diff = diff;
+			this.expectedKey = expectedKey;
+			this.actualKey = actualKey;
+			this.isUnchanged = isUnchanged;
+			if (!isUnchanged.test(diff.expectedRoot, diff.actualRoot)) {
+				pending.add(new Edit<>(Edit.Type.UPDATE, diff.expectedRoot, diff.actualRoot, null, null, -1));
+			}
+			expectedStack.push(diff.expectedRoot);
+			actualStack.push(diff.actualRoot);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (pending.isEmpty() && !expectedStack.isEmpty()) {
+				diffChildren(expectedStack.pop(), actualStack.pop());
+			}
+			return !pending.isEmpty();
+		}
+
+		@Override
+		public Edit<E, A> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return pending.poll();
+		}
+
+		/** Adds the edits between the children of the given matched pair, and pushes their matched children. */
+		private void diffChildren(E expected, A actual) {
+			if (diff.expectedDef == diff.actualDef && (Object) expected == actual) {
+				// a subtree is always equal to itself
+				return;
+			}
+			List<E> expectedChildren = TreeIterable.randomAccess(diff.expectedDef.childrenOf(expected));
+			List<A> actualChildren = TreeIterable.randomAccess(diff.actualDef.childrenOf(actual));
+			if (expectedChildren.isEmpty() && actualChildren.isEmpty()) {
+				return;
+			}
+			// the indices of the expected children for each key, to be matched in order
+			Map<Object, Deque<Integer>> expectedByKey = new HashMap<>();
+			for (int i = 0; i < expectedChildren.size(); ++i) {
+				expectedByKey.computeIfAbsent(expectedKey.apply(expectedChildren.get(i)), key -> new ArrayDeque<>(1)).add(i);
+			}
+			// the index of the matching expected child for each actual child, or -1 if there isn't one
+			int[] matches = new int[actualChildren.size()];
+			boolean[] isMatched = new boolean[expectedChildren.size()];
+			for (int j = 0; j < actualChildren.size(); ++j) {
+				Deque<Integer> candidates = expectedByKey.get(actualKey.apply(actualChildren.get(j)));
+				if (candidates == null || candidates.isEmpty()) {
+					matches[j] = -1;
+				} else {
+					matches[j] = candidates.poll();
+					isMatched[matches[j]] = true;
+				}
+			}
+			for (int i = 0; i < expectedChildren.size(); ++i) {
+				if (!isMatched[i]) {
+					pending.add(new Edit<>(Edit.Type.DELETE, expectedChildren.get(i), null, expected, actual, i));
+				}
+			}
+			boolean[] isInOrder = longestIncreasingSubsequence(matches);
+			for (int j = 0; j < actualChildren.size(); ++j) {
+				A actualChild = actualChildren.get(j);
+				if (matches[j] == -1) {
+					pending.add(new Edit<>(Edit.Type.INSERT, null, actualChild, expected, actual, j));
+				} else {
+					E expectedChild = expectedChildren.get(matches[j]);
+					if (!isInOrder[j]) {
+						pending.add(new Edit<>(Edit.Type.MOVE, expectedChild, actualChild, expected, actual, j));
+					}
+					if (!isUnchanged.test(expectedChild, actualChild)) {
+						pending.add(new Edit<>(Edit.Type.UPDATE, expectedChild, actualChild, expected, actual, j));
+					}
+				}
+			}
+			// push the matched pairs in reverse, so that the first pair is diffed first
+			for (int j = actualChildren.size() - 1; j >= 0; --j) {
+				if (matches[j] != -1) {
+					expectedStack.push(expectedChildren.get(matches[j]));
+					actualStack.push(actualChildren.get(j));
+				}
+			}
+		}
+	}
+
+	/** Returns which elements of {@code values} are in its longest strictly increasing subsequence, ignoring the negative elements. */
+	static boolean[] longestIncreasingSubsequence(int[] values) {
+		// tails[k] is the index of the smallest value which ends an increasing subsequence of length k + 1
+		int[] tails = new int[values.length];
+		int[] previous = new int[values.length];
+		int length = 0;
+		for (int j = 0; j < values.length; ++j) {
+			int value = values[j];
+			if (value < 0) {
+				continue;
+			}
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[tails[mid]] < value) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			previous[j] = low == 0 ? -1 : tails[low - 1];
+			tails[low] = j;
+			if (low == length) {
+				++length;
+			}
+		}
+		boolean[] result = new boolean[values.length];
+		for (int j = length == 0 ? -1 : tails[length - 1]; j != -1; j = previous[j]) {
+			result[j] = true;
+		}
+		return result;
+	}
+
+	/** A single difference between the expected and actual trees. */
+	public static final class Edit<E, A> {
+		/** The kinds of difference. */
+		public enum Type {
+			/** A subtree which is only in the actual tree. */
+			INSERT,
+			/** A subtree which is only in the expected tree. */
+			DELETE,
+			/** A node which is in both trees, but in a different position among its siblings. */
+			MOVE,
+			/** A node which is in both trees, but whose content has changed. */
+			UPDATE
+		}
+
+		private final Type type;
+		private final E expected;
+		private final A actual;
+		private final E expectedParent;
+		private final A actualParent;
+		private final int index;
+
+		private Edit(Type type, E expected, A actual, E expectedParent, A actualParent, int index) {
+			this.type = type;
+			this.expected = expected;
+			this.actual = actual;
+			this.expectedParent = expectedParent;
+			this.actualParent = actualParent;
+			this.index = index;
+		}
+
+		/** Returns the kind of difference. */
+		public Type getType() {
+			return type;
+		}
+
+		/** Returns the node in the expected tree, or null for an {@link Type#INSERT}. */
+		public E getExpected() {
+			return expected;
+		}
+
+		/** Returns the node in the actual tree, or null for a {@link Type#DELETE}. */
+		public A getActual() {
+			return actual;
+		}
+
+		/** Returns the parent of this edit in the expected tree, or null if this edit is to the root. */
+		public E getExpectedParent() {
+			return expectedParent;
+		}
+
+		/** Returns the parent of this edit in the actual tree, or null if this edit is to the root. */
+		public A getActualParent() {
+			return actualParent;
+		}
+
+		/**
+		 * Returns the index of the node among the children of its parent, or -1 if this edit is to the root.
+		 * <p>
+		 * For a {@link Type#DELETE}, this is the index within the expected parent; otherwise, it is the index within the actual parent.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		@Override
+		public String toString() {
+			switch (type) {
+			case INSERT:
+				return "INSERT " + actual + " at " + index;
+			case DELETE:
+				return "DELETE " + expected;
+			case MOVE:
+				return "MOVE " + actual + " to " + index;
+			case UPDATE:
+				return "UPDATE " + expected + " -> " + actual;
+			default:
+				throw Unhandled.enumException(type);
+			}
+		}
+	}
+
+	/** Creates a {@link TreeDiff} for diffing the two trees. */
+	public static <E, A> TreeDiff<E, A> of(TreeDef<E> expectedDef, E expectedRoot, TreeDef<A> actualDef, A actualRoot) {
+		return new TreeDiff<>(expectedDef, expectedRoot, actualDef, actualRoot);
+	}
+
+	/** Creates a {@link TreeDiff} for diffing two trees of the same type. */
+	public static <T> TreeDiff<T, T> of(TreeDef<T> treeDef, T expected, T actual) {
+		return of(treeDef, expected, treeDef, actual);
+	}
+
+	/** Creates a {@link TreeDiff} from the given two {@link TreeNode}s. */
+	public static <T> TreeDiff<TreeNode<T>, TreeNode<T>> of(TreeNode<T> expected, TreeNode<T> actual) {
+		return of(TreeNode.treeDef(), expected, actual);
+	}
+}
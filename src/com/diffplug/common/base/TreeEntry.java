@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+/**
+ * A node in a tree, along with its parent and its depth, as reported by a traversal such as {@link TreeStream#depthFirstEntries(TreeDef, Object)}.
+ * <p>
+ * The parent and depth are relative to the node where the traversal started, which has a null parent and a depth of 0.
+ */
+public final class TreeEntry<T> {
+	private final T node;
+	private final T parent;
+	private final int depth;
+
+	TreeEntry(T node, T parent, int depth) {
+		this.node = node;
+		this.parent = parent;
+		this.depth = depth;
+	}
+
+	/** Returns the node. */
+	public T getNode() {
+		return node;
+	}
+
+	/** Returns the parent of the node, or null if the node is where the traversal started. */
+	public T getParent() {
+		return parent;
+	}
+
+	/** Returns the number of levels that the node is below where the traversal started. */
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeEntry[" + node + ", depth=" + depth + "]";
+	}
+}
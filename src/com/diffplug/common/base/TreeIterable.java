@@ -16,12 +16,14 @@
 package com.diffplug.common.base;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 
 /** Creates {@code Iterable}s that iterate across a tree defined by a {@link TreeDef} in various orders. */
 public class TreeIterable {
@@ -49,51 +51,376 @@ public class TreeIterable {
 		};
 	}
 
-	/** Creates an {@code Iterable} that starts at {@code node} and iterates deeper into the tree in a bread-first order. */
+	/**
+	 * Creates an {@code Iterable} that starts at {@code node} and iterates deeper into the tree in a bread-first order.
+	 * <p>
+	 * The children of each node are copied into an array when the node is returned, rather than being copied into the
+	 * queue one-by-one, so the tree can be modified during the iteration without disturbing it.
+	 */
 	public static <T> Iterable<T> breadthFirst(TreeDef<T> treeDef, T node) {
-		return () -> new Iterator<T>() {
-			Deque<T> queue = new ArrayDeque<>(Arrays.asList(node));
+		if (treeDef instanceof TreeDef.Lazy) {
+			return () -> new LazyBreadthFirstIterator<>(treeDef, node);
+		} else {
+			return () -> new BreadthFirstIterator<>(treeDef, node);
+		}
+	}
 
-			@Override
-			public boolean hasNext() {
-				return !queue.isEmpty();
+	/**
+	 * Creates an {@code Iterable} that starts at {@code node} and iterates deeper into the tree in a depth-first order.
+	 * <p>
+	 * The children of each node are copied into an array when the node is returned, and the pending nodes are
+	 * stored as a stack of (array, index) cursors, so the tree can be modified during the iteration without disturbing it.
+	 */
+	public static <T> Iterable<T> depthFirst(TreeDef<T> treeDef, T node) {
+		if (treeDef instanceof TreeDef.Lazy) {
+			return () -> new LazyDepthFirstIterator<>(treeDef, node);
+		} else {
+			return () -> new DepthFirstIterator<>(treeDef, node);
+		}
+	}
+
+	/**
+	 * Creates an {@code Iterable} that iterates across the tree below {@code node} in a post-order, where every
+	 * node comes after all of its descendants, and ends at {@code node}.
+	 * <p>
+	 * The pending nodes are stored as a stack of child iterators, so the memory used by the
+	 * traversal is proportional to the depth of the tree, not its size.
+	 */
+	public static <T> Iterable<T> postOrder(TreeDef<T> treeDef, T node) {
+		return () -> new PostOrderIterator<>(treeDef, node);
+	}
+
+	/** Creates an {@code Iterable} of {@link TreeEntry} which is otherwise the same as {@link #depthFirst(TreeDef, Object)}. */
+	public static <T> Iterable<TreeEntry<T>> depthFirstEntries(TreeDef<T> treeDef, T node) {
+		return () -> new EntryIterator<>(treeDef, node, false);
+	}
+
+	/** Creates an {@code Iterable} of {@link TreeEntry} which is otherwise the same as {@link #postOrder(TreeDef, Object)}. */
+	public static <T> Iterable<TreeEntry<T>> postOrderEntries(TreeDef<T> treeDef, T node) {
+		return () -> new EntryIterator<>(treeDef, node, true);
+	}
+
+	/**
+	 * Creates an {@code Iterable} that starts at {@code node} and iterates deeper into the tree in a depth-first order,
+	 * under the control of the given {@link TreeVisitor}.
+	 * <p>
+	 * Every node for which {@link TreeVisitor#preVisit(Object) preVisit} returns {@code CONTINUE} or {@code SKIP_SUBTREE}
+	 * is returned, but only the children of {@code CONTINUE} nodes are visited, and the iteration ends as soon as either
+	 * callback returns {@code TERMINATE}.  The children are pulled from {@link TreeDef#childIterator(Object)}, so pruned
+	 * subtrees are never expanded, and nothing is copied.  {@link TreeVisitor#postVisit(Object) postVisit} is called
+	 * lazily, when the iteration moves past the last descendant of a node.
+	 */
+	public static <T> Iterable<T> depthFirst(TreeDef<T> treeDef, T node, TreeVisitor<? super T> visitor) {
+		return () -> new VisitorIterator<>(treeDef, node, visitor);
+	}
+
+	/** Returns a list which can be efficiently accessed by index. */
+	static <T> List<T> randomAccess(List<T> list) {
+		return list instanceof RandomAccess ? list : new ArrayList<>(list);
+	}
+
+	/** Queue of copied child arrays, where the next element is at {@code headIndex} within the first array. */
+	private static final class BreadthFirstIterator<T> implements Iterator<T> {
+		private final TreeDef<T> treeDef;
+		private final Deque<Object[]> queue = new ArrayDeque<>();
+		private int headIndex = 0;
+
+		private BreadthFirstIterator(TreeDef<T> treeDef, T node) {
+			this.treeDef = treeDef;
+			queue.add(new Object[]{node});
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (queue.isEmpty()) {
+				throw new NoSuchElementException();
 			}
+			Object[] head = queue.getFirst();
+			@SuppressWarnings("unchecked")
+			T next = (T) head[headIndex++];
+			if (headIndex == head.length) {
+				queue.removeFirst();
+				headIndex = 0;
+			}
+			List<T> children = treeDef.childrenOf(next);
+			if (!children.isEmpty()) {
+				queue.addLast(children.toArray());
+			}
+			return next;
+		}
+	}
 
-			@Override
-			public T next() {
-				if (queue.isEmpty()) {
-					throw new NoSuchElementException();
+	/** Queue of child iterators for a {@link TreeDef.Lazy}, where the next element comes from the first iterator. */
+	private static final class LazyBreadthFirstIterator<T> implements Iterator<T> {
+		private final TreeDef<T> treeDef;
+		private final Deque<Iterator<T>> queue = new ArrayDeque<>();
+
+		private LazyBreadthFirstIterator(TreeDef<T> treeDef, T node) {
+			this.treeDef = treeDef;
+			queue.add(Collections.singletonList(node).iterator());
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (queue.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			Iterator<T> head = queue.getFirst();
+			T next = head.next();
+			if (!head.hasNext()) {
+				queue.removeFirst();
+			}
+			Iterator<T> children = treeDef.childIterator(next);
+			if (children.hasNext()) {
+				queue.addLast(children);
+			}
+			return next;
+		}
+	}
+
+	/** Stack of child iterators for a {@link TreeDef.Lazy}, where the next element comes from the last iterator. */
+	private static final class LazyDepthFirstIterator<T> implements Iterator<T> {
+		private final TreeDef<T> treeDef;
+		private final Deque<Iterator<T>> stack = new ArrayDeque<>();
+
+		private LazyDepthFirstIterator(TreeDef<T> treeDef, T node) {
+			this.treeDef = treeDef;
+			stack.push(Collections.singletonList(node).iterator());
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (stack.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			T next = stack.peek().next();
+			Iterator<T> children = treeDef.childIterator(next);
+			if (children.hasNext()) {
+				stack.push(children);
+			} else {
+				// pop every iterator which has been exhausted
+				while (!stack.isEmpty() && !stack.peek().hasNext()) {
+					stack.pop();
 				}
-				T next = queue.removeFirst();
-				treeDef.childrenOf(next).forEach(queue::addLast);
-				return next;
 			}
-		};
+			return next;
+		}
 	}
 
-	/** Creates an {@code Iterable} that starts at {@code node} and iterates deeper into the tree in a depth-first order. */
-	public static <T> Iterable<T> depthFirst(TreeDef<T> treeDef, T node) {
-		return () -> new Iterator<T>() {
-			Deque<T> queue = new ArrayDeque<>(Arrays.asList(node));
+	/** Stack of copied child arrays, where {@code indices[i]} is the index of the next element within {@code arrays.get(i)}. */
+	private static final class DepthFirstIterator<T> implements Iterator<T> {
+		private final TreeDef<T> treeDef;
+		private final List<Object[]> arrays = new ArrayList<>();
+		private int[] indices = new int[16];
 
-			@Override
-			public boolean hasNext() {
-				return !queue.isEmpty();
+		private DepthFirstIterator(TreeDef<T> treeDef, T node) {
+			this.treeDef = treeDef;
+			arrays.add(new Object[]{node});
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !arrays.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (arrays.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			int top = arrays.size() - 1;
+			@SuppressWarnings("unchecked")
+			T next = (T) arrays.get(top)[indices[top]++];
+			List<T> children = treeDef.childrenOf(next);
+			if (!children.isEmpty()) {
+				if (arrays.size() == indices.length) {
+					indices = Arrays.copyOf(indices, 2 * indices.length);
+				}
+				indices[arrays.size()] = 0;
+				arrays.add(children.toArray());
+			} else {
+				// pop every array which has been exhausted
+				while (top >= 0 && indices[top] == arrays.get(top).length) {
+					arrays.remove(top--);
+				}
 			}
+			return next;
+		}
+	}
 
-			@Override
-			public T next() {
-				if (queue.isEmpty()) {
-					throw new NoSuchElementException();
+	/** A stack of child iterators, with one more iterator than visited nodes, because the bottom iterator holds the starting node. */
+	private static final class VisitorIterator<T> implements Iterator<T> {
+		private final TreeDef<T> treeDef;
+		private final TreeVisitor<? super T> visitor;
+		private final Deque<Iterator<T>> iterators = new ArrayDeque<>();
+		/** The nodes whose children are being visited, which need a postVisit once their iterator is exhausted. */
+		private final Deque<T> nodes = new ArrayDeque<>();
+		private T next;
+		private boolean hasNext;
+
+		private VisitorIterator(TreeDef<T> treeDef, T node, TreeVisitor<? super T> visitor) {
+			this.treeDef = treeDef;
+			this.visitor = visitor;
+			iterators.push(Collections.singletonList(node).iterator());
+		}
+
+		/** Visits nodes until one should be returned, or the traversal ends. */
+		private void advance() {
+			while (!hasNext && !iterators.isEmpty()) {
+				Iterator<T> children = iterators.peek();
+				if (children.hasNext()) {
+					T child = children.next();
+					TreeVisitor.Result result = visitor.preVisit(child);
+					if (result == TreeVisitor.Result.TERMINATE) {
+						terminate();
+					} else {
+						if (result == TreeVisitor.Result.CONTINUE) {
+							nodes.push(child);
+							iterators.push(treeDef.childIterator(child));
+						}
+						next = child;
+						hasNext = true;
+					}
+				} else {
+					iterators.pop();
+					if (!nodes.isEmpty() && visitor.postVisit(nodes.pop()) == TreeVisitor.Result.TERMINATE) {
+						terminate();
+					}
 				}
-				T next = queue.removeLast();
-				List<T> children = treeDef.childrenOf(next);
-				ListIterator<T> iterator = children.listIterator(children.size());
-				while (iterator.hasPrevious()) {
-					queue.addLast(iterator.previous());
+			}
+		}
+
+		private void terminate() {
+			iterators.clear();
+			nodes.clear();
+		}
+
+		@Override
+		public boolean hasNext() {
+			advance();
+			return hasNext;
+		}
+
+		@Override
+		public T next() {
+			advance();
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			T result = next;
+			next = null;
+			hasNext = false;
+			return result;
+		}
+	}
+
+	/** A stack of nodes and their child iterators, where each node is returned once its iterator is exhausted. */
+	private static final class PostOrderIterator<T> implements Iterator<T> {
+		private final TreeDef<T> treeDef;
+		private final Deque<T> nodes = new ArrayDeque<>();
+		private final Deque<Iterator<T>> iterators = new ArrayDeque<>();
+
+		private PostOrderIterator(TreeDef<T> treeDef, T node) {
+			this.treeDef = treeDef;
+			nodes.push(node);
+			iterators.push(treeDef.childIterator(node));
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !nodes.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (nodes.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			// descend to the first node whose children have all been returned
+			Iterator<T> children = iterators.peek();
+			while (children.hasNext()) {
+				T child = children.next();
+				children = treeDef.childIterator(child);
+				nodes.push(child);
+				iterators.push(children);
+			}
+			iterators.pop();
+			return nodes.pop();
+		}
+	}
+
+	/** A stack of entries and their child iterators, where each entry is returned when it is pushed (pre-order) or popped (post-order). */
+	private static final class EntryIterator<T> implements Iterator<TreeEntry<T>> {
+		private final TreeDef<T> treeDef;
+		private final boolean postOrder;
+		private final Deque<TreeEntry<T>> entries = new ArrayDeque<>();
+		private final Deque<Iterator<T>> iterators = new ArrayDeque<>();
+		private TreeEntry<T> next;
+
+		private EntryIterator(TreeDef<T> treeDef, T node, boolean postOrder) {
+			this.treeDef = treeDef;
+			this.postOrder = postOrder;
+			TreeEntry<T> root = new TreeEntry<>(node, null, 0);
+			entries.push(root);
+			iterators.push(treeDef.childIterator(node));
+			if (!postOrder) {
+				next = root;
+			}
+		}
+
+		/** Moves through the tree until there is an entry to return, or the traversal is done. */
+		private void advance() {
+			while (next == null && !entries.isEmpty()) {
+				Iterator<T> children = iterators.peek();
+				if (children.hasNext()) {
+					TreeEntry<T> parent = entries.peek();
+					T child = children.next();
+					TreeEntry<T> entry = new TreeEntry<>(child, parent.getNode(), parent.getDepth() + 1);
+					entries.push(entry);
+					iterators.push(treeDef.childIterator(child));
+					if (!postOrder) {
+						next = entry;
+					}
+				} else {
+					iterators.pop();
+					TreeEntry<T> done = entries.pop();
+					if (postOrder) {
+						next = done;
+					}
 				}
-				return next;
 			}
-		};
+		}
+
+		@Override
+		public boolean hasNext() {
+			advance();
+			return next != null;
+		}
+
+		@Override
+		public TreeEntry<T> next() {
+			advance();
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			TreeEntry<T> result = next;
+			next = null;
+			return result;
+		}
 	}
 }
@@ -15,20 +15,34 @@
  */
 package com.diffplug.common.base;
 
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
 
 /** Class for manually constructing a tree, or for copying an existing tree. */
 public class TreeNode<T> {
 	private TreeNode<T> parent;
 	private T content;
-	private List<TreeNode<T>> children;
+	private Children<T> children;
+	/** The index of this node within its parent's children, which is meaningless if it has no parent. */
+	private int indexInParent;
+	/** State which is shared by every node in the tree, or null if it has no content index and isn't kept sorted. */
+	private TreeState<T> state;
 
 	/** Creates a TreeNode with the given parent and content. Automatically adds itself as a child of its parent. */
 	public TreeNode(TreeNode<T> parent, T content) {
@@ -40,21 +54,31 @@ public class TreeNode<T> {
 	 * <p>
 	 * {@code childCapacity} is provided strictly for performance reasons.
 	 */
-	@SuppressWarnings("unchecked")
 	public TreeNode(TreeNode<T> parent, T content, int childCapacity) {
 		this.parent = parent;
 		this.content = content;
-		if (parent != null) {
-			// if it's a Collections.emptyList(), then we need to make it a list we can add to
-			if (parent.children == Collections.EMPTY_LIST) {
-				parent.children = new ArrayList<>();
-			}
-			parent.children.add(this);
-		}
 		if (childCapacity == 0) {
-			children = Collections.EMPTY_LIST;
+			children = Children.empty();
 		} else {
-			children = new ArrayList<>(childCapacity);
+			children = new Children<>(childCapacity);
+		}
+		if (parent != null) {
+			// if it's the shared empty list, then we need to make it a list we can add to
+			if (parent.children == Children.EMPTY) {
+				parent.children = new Children<>(1);
+			}
+			state = parent.state;
+			if (state != null && state.sortOrder != null) {
+				indexInParent = parent.sortedIndexOf(this, state.sortOrder);
+				parent.children.insert(indexInParent, this);
+				reindex(parent.children, indexInParent + 1);
+			} else {
+				indexInParent = parent.children.size();
+				parent.children.insert(indexInParent, this);
+			}
+			if (state != null) {
+				state.add(this);
+			}
 		}
 	}
 
@@ -65,7 +89,18 @@ public class TreeNode<T> {
 
 	/** Sets the object which is encapsulated by this TreeNode. */
 	public void setContent(T content) {
-		this.content = content;
+		if (state != null) {
+			state.remove(this);
+			this.content = content;
+			state.add(this);
+			if (state.sortOrder != null && parent != null && !isInSortedPosition(state.sortOrder)) {
+				TreeNode<T> sameParent = parent;
+				detach();
+				attach(sameParent, sameParent.sortedIndexOf(this, state.sortOrder));
+			}
+		} else {
+			this.content = content;
+		}
 	}
 
 	/** Returns the (possibly-null) parent of this TreeNode. */
@@ -73,18 +108,380 @@ public class TreeNode<T> {
 		return parent;
 	}
 
-	/** Returns the children of this TreeNode. */
+	/** Returns the children of this TreeNode, as a read-only list which reflects any later changes. */
 	public List<TreeNode<T>> getChildren() {
-		return Collections.unmodifiableList(children);
+		return children;
+	}
+
+	/** Returns the index of this TreeNode within the children of its parent, or -1 if it has no parent. */
+	public int getIndexInParent() {
+		return parent == null ? -1 : indexInParent;
 	}
 
-	/** Removes this TreeNode from its parent. */
+	/**
+	 * Removes this TreeNode from its parent.
+	 * <p>
+	 * Each node tracks its index within its parent, so there's no search, but every later sibling is
+	 * shifted down and reindexed, which costs O(number of siblings).  Removing many siblings one at a time
+	 * is therefore quadratic; use {@link #removeChildrenIf(Predicate)} instead, which is linear in the number of children.
+	 */
 	public void removeFromParent() {
 		Objects.requireNonNull(parent);
-		parent.children.remove(this);
+		detach();
+		if (state != null) {
+			// the removed subtree is now its own tree, without an index
+			setState(null);
+		}
+	}
+
+	/**
+	 * Moves this TreeNode to the end of the children of the given parent, which may be its current parent.
+	 * <p>
+	 * If the new parent's tree is {@link #keepChildrenSortedByNode(Comparator) kept sorted}, then this node
+	 * goes to its sorted position instead, and its own children are sorted.
+	 * 
+	 * @throws IllegalArgumentException if {@code newParent} is this node or one of its descendants
+	 */
+	public void moveTo(TreeNode<T> newParent) {
+		if (newParent.isKeptSorted()) {
+			move(newParent, -1);
+		} else {
+			move(newParent, newParent.children.size() - (newParent == parent ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Moves this TreeNode to the given index within the children of the given parent, which may be its current parent.
+	 * 
+	 * @throws IllegalArgumentException if {@code newParent} is this node or one of its descendants
+	 * @throws IndexOutOfBoundsException if {@code index} is not within {@code [0, number of children after the move - 1]}
+	 * @throws IllegalStateException if the new parent's tree is {@link #keepChildrenSortedByNode(Comparator) kept sorted}
+	 */
+	public void moveTo(TreeNode<T> newParent, int index) {
+		if (newParent.isKeptSorted()) {
+			throw new IllegalStateException("The children of " + newParent + " are kept sorted, so they can't be moved to a specific index.");
+		}
+		move(newParent, index);
+	}
+
+	/** Moves this node to the given index within the children of the given parent, or to its sorted position if the index is -1. */
+	private void move(TreeNode<T> newParent, int index) {
+		for (TreeNode<T> ancestor = newParent; ancestor != null; ancestor = ancestor.parent) {
+			if (ancestor == this) {
+				throw new IllegalArgumentException("Can't move " + this + " into its own subtree " + newParent);
+			}
+		}
+		int maxIndex = newParent.children.size() - (newParent == parent ? 1 : 0);
+		if (index != -1 && (index < 0 || index > maxIndex)) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + maxIndex);
+		}
+		if (parent != null) {
+			detach();
+		}
+		attach(newParent, index == -1 ? newParent.sortedIndexOf(this, newParent.state.sortOrder) : index);
+		if (state != newParent.state) {
+			setState(newParent.state);
+			if (isKeptSorted()) {
+				sortSubtree(state.sortOrder);
+			}
+		}
+	}
+
+	/**
+	 * Removes every child which matches the given predicate, in a single pass over the children.
+	 * 
+	 * @return true if any children were removed
+	 */
+	public boolean removeChildrenIf(Predicate<? super TreeNode<T>> predicate) {
+		// test every child before changing anything, in case the predicate looks at the siblings
+		boolean[] toRemove = new boolean[children.size()];
+		boolean anyRemoved = false;
+		for (int i = 0; i < toRemove.length; ++i) {
+			toRemove[i] = predicate.test(children.get(i));
+			anyRemoved |= toRemove[i];
+		}
+		if (!anyRemoved) {
+			return false;
+		}
+		int kept = 0;
+		for (int i = 0; i < toRemove.length; ++i) {
+			TreeNode<T> child = children.get(i);
+			if (toRemove[i]) {
+				child.parent = null;
+				if (child.state != null) {
+					child.setState(null);
+				}
+			} else {
+				child.indexInParent = kept;
+				children.put(kept++, child);
+			}
+		}
+		children.truncate(kept);
+		return true;
+	}
+
+	/** Removes this node from its parent's children, without changing its state. */
+	private void detach() {
+		parent.children.removeAt(indexInParent);
+		reindex(parent.children, indexInParent);
 		parent = null;
 	}
 
+	/** Inserts this parentless node into the children of the given parent, without changing its state. */
+	private void attach(TreeNode<T> newParent, int index) {
+		// if it's the shared empty list, then we need to make it a list we can add to
+		if (newParent.children == Children.EMPTY) {
+			newParent.children = new Children<>(1);
+		}
+		newParent.children.insert(index, this);
+		reindex(newParent.children, index);
+		parent = newParent;
+	}
+
+	/** Updates the {@code indexInParent} of the given children, starting at {@code start}. */
+	private static <T> void reindex(List<TreeNode<T>> children, int start) {
+		for (int i = start; i < children.size(); ++i) {
+			children.get(i).indexInParent = i;
+		}
+	}
+
+	/** Sets the state of this node and all of its descendants, removing them from their old content index and adding them to the new one. */
+	private void setState(TreeState<T> newState) {
+		TreeStream.depthFirst(treeDef(), this).forEach(node -> {
+			if (node.state != null) {
+				node.state.remove(node);
+			}
+			node.state = newState;
+			if (newState != null) {
+				newState.add(node);
+			}
+		});
+	}
+
+	/**
+	 * Maintains an index from content to node for this entire tree, which makes
+	 * {@link #findByContent(Object)} a hash lookup rather than a scan.
+	 * <p>
+	 * Once enabled, the index is kept up-to-date by {@link #TreeNode(TreeNode, Object, int) construction},
+	 * {@link #setContent(Object)}, {@link #removeFromParent()}, {@link #moveTo(TreeNode, int)}, and
+	 * {@link #removeChildrenIf(Predicate)}.  The content's {@code hashCode()} must
+	 * therefore be consistent with its {@code equals()}, and must not change while it is in the tree.
+	 */
+	public void enableContentIndex() {
+		TreeNode<T> root = TreeQuery.root(treeDef(), this);
+		if (root.state == null) {
+			root.setState(new TreeState<>());
+		}
+		if (root.state.byContent == null) {
+			TreeState<T> rootState = root.state;
+			rootState.byContent = new HashMap<>();
+			TreeStream.depthFirst(treeDef(), root).forEach(rootState::add);
+		}
+	}
+
+	/** Removes the index created by {@link #enableContentIndex()} from this entire tree. */
+	public void disableContentIndex() {
+		TreeNode<T> root = TreeQuery.root(treeDef(), this);
+		if (root.state != null) {
+			root.state.byContent = null;
+			root.removeStateIfUnused();
+		}
+	}
+
+	/** Returns true if {@link #enableContentIndex()} is in effect for this tree. */
+	public boolean isContentIndexEnabled() {
+		return state != null && state.byContent != null;
+	}
+
+	/**
+	 * Sorts every node in this entire tree using the given comparator of their content, and keeps them sorted from now on.
+	 * 
+	 * @see #keepChildrenSortedByNode(Comparator)
+	 */
+	public void keepChildrenSortedByContent(Comparator<? super T> comparator) {
+		keepChildrenSortedByNode(Comparator.comparing(TreeNode::getContent, comparator));
+	}
+
+	/**
+	 * Sorts every node in this entire tree using the given comparator, and keeps them sorted from now on, so the tree never needs to be sorted again.
+	 * <p>
+	 * New children are inserted at their binary-search position, {@link #setContent(Object)} moves a node to its new position,
+	 * and {@link #moveTo(TreeNode)} moves a node to its sorted position.  The comparator must therefore depend only on the
+	 * content of the nodes, and ties keep their order of insertion.  A subtree which is removed from the tree is no longer kept sorted.
+	 */
+	public void keepChildrenSortedByNode(Comparator<TreeNode<T>> comparator) {
+		TreeNode<T> root = TreeQuery.root(treeDef(), this);
+		if (root.state == null) {
+			root.setState(new TreeState<>());
+		}
+		root.sortSubtree(comparator);
+		root.state.sortOrder = comparator;
+	}
+
+	/** Stops keeping this tree sorted, which was started by {@link #keepChildrenSortedByNode(Comparator)}. */
+	public void stopKeepingChildrenSorted() {
+		TreeNode<T> root = TreeQuery.root(treeDef(), this);
+		if (root.state != null) {
+			root.state.sortOrder = null;
+			root.removeStateIfUnused();
+		}
+	}
+
+	/** Returns true if {@link #keepChildrenSortedByNode(Comparator)} is in effect for this tree. */
+	public boolean isKeptSorted() {
+		return state != null && state.sortOrder != null;
+	}
+
+	/** Removes the state from every node in this tree if it has no content index and isn't kept sorted. */
+	private void removeStateIfUnused() {
+		if (state.byContent == null && state.sortOrder == null) {
+			TreeStream.depthFirst(treeDef(), this).forEach(node -> node.state = null);
+		}
+	}
+
+	/** Returns the index where the given node, which is not one of these children, would be inserted to keep them sorted, after any equal children. */
+	private int sortedIndexOf(TreeNode<T> node, Comparator<TreeNode<T>> comparator) {
+		int low = 0;
+		int high = children.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (comparator.compare(children.get(mid), node) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** Returns true if this node is still in order with its siblings. */
+	private boolean isInSortedPosition(Comparator<TreeNode<T>> comparator) {
+		List<TreeNode<T>> siblings = parent.children;
+		return (indexInParent == 0 || comparator.compare(siblings.get(indexInParent - 1), this) <= 0)
+				&& (indexInParent == siblings.size() - 1 || comparator.compare(this, siblings.get(indexInParent + 1)) <= 0);
+	}
+
+	/**
+	 * Trims the storage for the children of this node and all of its descendants to their exact size.
+	 * <p>
+	 * Lists of children grow with slack to make adding cheap, so this minimizes the memory of a tree which is done growing.
+	 */
+	public void trimChildrenToSize() {
+		TreeStream.depthFirst(treeDef(), this).forEach(node -> {
+			if (node.children.isEmpty()) {
+				node.children = Children.empty();
+			} else {
+				node.children.trimToSize();
+			}
+		});
+	}
+
+	/**
+	 * The children of a TreeNode, stored in an array which grows conservatively.
+	 * <p>
+	 * It is read-only to everyone but TreeNode, so that {@link TreeNode#getChildren()} can return it without a wrapper,
+	 * and every leaf shares the same {@link #EMPTY} instance.
+	 */
+	private static final class Children<T> extends AbstractList<TreeNode<T>> implements RandomAccess {
+		/** Shared by every node without children, and replaced by a real list when the first child is added. */
+		static final Children<?> EMPTY = new Children<>(0);
+
+		@SuppressWarnings("unchecked")
+		static <T> Children<T> empty() {
+			return (Children<T>) EMPTY;
+		}
+
+		private TreeNode<T>[] array;
+		private int size;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Children(int capacity) {
+			array = new TreeNode[capacity];
+		}
+
+		@Override
+		public TreeNode<T> get(int index) {
+			if (index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return array[index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Object[] toArray() {
+			return Arrays.copyOf(array, size, Object[].class);
+		}
+
+		void insert(int index, TreeNode<T> node) {
+			if (size == array.length) {
+				// start at one and grow by 1.5x, rather than ArrayList's initial 10, because most nodes have only a few children
+				array = Arrays.copyOf(array, size + (size >> 1) + 1);
+			}
+			System.arraycopy(array, index, array, index + 1, size - index);
+			array[index] = node;
+			++size;
+			++modCount;
+		}
+
+		void removeAt(int index) {
+			System.arraycopy(array, index + 1, array, index, size - index - 1);
+			array[--size] = null;
+			++modCount;
+		}
+
+		void put(int index, TreeNode<T> node) {
+			array[index] = node;
+		}
+
+		void truncate(int newSize) {
+			Arrays.fill(array, newSize, size, null);
+			size = newSize;
+			++modCount;
+		}
+
+		void sortBy(Comparator<TreeNode<T>> comparator) {
+			Arrays.sort(array, 0, size, comparator);
+			++modCount;
+		}
+
+		void trimToSize() {
+			if (size < array.length) {
+				array = Arrays.copyOf(array, size);
+			}
+		}
+	}
+
+	/** State which is shared by every node in a tree. */
+	private static final class TreeState<T> {
+		/** The content index, or null if it is disabled. */
+		Map<Object, List<TreeNode<T>>> byContent;
+		/** The order in which the children are kept, or null if they aren't kept sorted. */
+		Comparator<TreeNode<T>> sortOrder;
+
+		void add(TreeNode<T> node) {
+			if (byContent != null) {
+				byContent.computeIfAbsent(node.content, key -> new ArrayList<>(1)).add(node);
+			}
+		}
+
+		void remove(TreeNode<T> node) {
+			if (byContent == null) {
+				return;
+			}
+			List<TreeNode<T>> nodes = byContent.get(node.content);
+			// TreeNode doesn't override equals, so this is an identity removal
+			nodes.remove(node);
+			if (nodes.isEmpty()) {
+				byContent.remove(node.content);
+			}
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "TreeNode[" + content + "]";
@@ -119,17 +516,103 @@ public class TreeNode<T> {
 		return copy(treeDef(), this, TreeNode::getContent);
 	}
 
-	/** Recursively sorts all children using the given comparator of their content. */
+	/**
+	 * Recursively sorts all children using the given comparator of their content.
+	 * 
+	 * @throws IllegalStateException if this tree is {@link #keepChildrenSortedByNode(Comparator) kept sorted}
+	 */
 	public void sortChildrenByContent(Comparator<? super T> comparator) {
 		Comparator<TreeNode<T>> byContent = Comparator.comparing(TreeNode::getContent, comparator);
 		sortChildrenByNode(byContent);
 	}
 
-	/** Recursively sorts all children using the given comparator of TreeNode. */
+	/**
+	 * Recursively sorts all children using the given comparator of TreeNode.
+	 * <p>
+	 * Lists of children which are already sorted are left alone.
+	 * 
+	 * @throws IllegalStateException if this tree is {@link #keepChildrenSortedByNode(Comparator) kept sorted}
+	 */
 	public void sortChildrenByNode(Comparator<TreeNode<T>> comparator) {
-		Collections.sort(children, comparator);
-		for (TreeNode<T> child : children) {
-			child.sortChildrenByNode(comparator);
+		checkNotKeptSorted();
+		sortSubtree(comparator);
+	}
+
+	/** Throws an IllegalStateException if this tree is kept sorted, because another order would break it. */
+	private void checkNotKeptSorted() {
+		if (isKeptSorted()) {
+			throw new IllegalStateException("This tree is kept sorted, so its order can only be changed by keepChildrenSortedByNode.");
+		}
+	}
+
+	/** Sorts this node's children and every subtree below them. */
+	private void sortSubtree(Comparator<TreeNode<T>> comparator) {
+		sortChildren(this, comparator);
+		// a stack of nodes and the index of their next child
+		List<TreeNode<T>> nodes = new ArrayList<>();
+		int[] indices = new int[16];
+		nodes.add(this);
+		while (!nodes.isEmpty()) {
+			int top = nodes.size() - 1;
+			List<TreeNode<T>> siblings = nodes.get(top).children;
+			if (indices[top] < siblings.size()) {
+				TreeNode<T> child = siblings.get(indices[top]++);
+				if (!child.children.isEmpty()) {
+					sortChildren(child, comparator);
+					if (nodes.size() == indices.length) {
+						indices = Arrays.copyOf(indices, 2 * indices.length);
+					}
+					indices[nodes.size()] = 0;
+					nodes.add(child);
+				}
+			} else {
+				nodes.remove(top);
+			}
+		}
+	}
+
+	/**
+	 * Recursively sorts all children in parallel using the given comparator of their content.
+	 * 
+	 * @throws IllegalStateException if this tree is {@link #keepChildrenSortedByNode(Comparator) kept sorted}
+	 * @see #sortChildrenByNode(Comparator, ForkJoinPool, int)
+	 */
+	public void sortChildrenByContent(Comparator<? super T> comparator, ForkJoinPool pool, int forkDepth) {
+		Comparator<TreeNode<T>> byContent = Comparator.comparing(TreeNode::getContent, comparator);
+		sortChildrenByNode(byContent, pool, forkDepth);
+	}
+
+	/**
+	 * Recursively sorts all children in parallel using the given comparator of TreeNode.
+	 * <p>
+	 * The subtrees of every node shallower than {@code forkDepth} are sorted as separate fork-join
+	 * tasks by {@link TreeQuery#copyLeavesInParallel(TreeDef, Object, java.util.function.BiFunction, ForkJoinPool, int)},
+	 * and everything deeper is sorted sequentially.
+	 * The comparator must be safe to call from multiple threads, and the tree must not be modified
+	 * by any other thread until the sort is complete.
+	 *
+	 * @param comparator	the order for the children
+	 * @param pool		the pool which will execute the sort
+	 * @param forkDepth	nodes at this depth or deeper (this node is depth 0) are sorted sequentially
+	 * @throws IllegalStateException if this tree is {@link #keepChildrenSortedByNode(Comparator) kept sorted}
+	 */
+	public void sortChildrenByNode(Comparator<TreeNode<T>> comparator, ForkJoinPool pool, int forkDepth) {
+		checkNotKeptSorted();
+		TreeQuery.copyLeavesInParallel(treeDef(), this, (node, unused) -> {
+			sortChildren(node, comparator);
+			return null;
+		}, pool, forkDepth);
+	}
+
+	/** Sorts the children of the given node, unless they're already sorted. */
+	private static <T> void sortChildren(TreeNode<T> node, Comparator<TreeNode<T>> comparator) {
+		Children<T> children = node.children;
+		for (int i = 1; i < children.size(); ++i) {
+			if (comparator.compare(children.get(i - 1), children.get(i)) > 0) {
+				children.sortBy(comparator);
+				reindex(children, 0);
+				return;
+			}
 		}
 	}
 
@@ -146,16 +629,159 @@ public class TreeNode<T> {
 		List<T> children = treeDef.childrenOf(root);
 		R mapped = mapper.apply(root);
 		TreeNode<R> copyRoot = new TreeNode<>(null, mapped, children.size());
-		copyRecurse(copyRoot, treeDef, root, children, mapper);
+		// a stack of the children which are being copied, and the copied node which is their parent
+		Deque<Iterator<T>> stack = new ArrayDeque<>();
+		List<TreeNode<R>> copiedParents = new ArrayList<>();
+		stack.push(children.iterator());
+		copiedParents.add(copyRoot);
+		while (!stack.isEmpty()) {
+			Iterator<T> siblings = stack.peek();
+			if (siblings.hasNext()) {
+				T child = siblings.next();
+				R mappedChild = mapper.apply(child);
+				List<T> grandChildren = treeDef.childrenOf(child);
+				TreeNode<R> copied = new TreeNode<>(copiedParents.get(copiedParents.size() - 1), mappedChild, grandChildren.size());
+				// leaves have nothing to copy, so they don't need to go on the stack
+				if (!grandChildren.isEmpty()) {
+					stack.push(grandChildren.iterator());
+					copiedParents.add(copied);
+				}
+			} else {
+				stack.pop();
+				copiedParents.remove(copiedParents.size() - 1);
+			}
+		}
 		return copyRoot;
 	}
 
-	private static <T, R> void copyRecurse(TreeNode<R> copiedRoot, TreeDef<T> treeDef, T root, List<T> children, Function<? super T, ? extends R> mapper) {
-		for (T child : children) {
-			R mapped = mapper.apply(child);
-			List<T> grandChildren = treeDef.childrenOf(child);
-			copyRecurse(new TreeNode<>(copiedRoot, mapped, grandChildren.size()), treeDef, child, grandChildren, mapper);
+	/**
+	 * Creates a hierarchy of TreeNodes from the depth and content of every node in pre-order (parents before their children),
+	 * which is how trees are commonly stored in flat files.
+	 * <p>
+	 * The first node is the root at depth 0, and each later node has a depth between 1 and one more than the depth of the node before it.
+	 * The children of every node are counted before any node is created, so that each node's children are allocated once, at their exact size.
+	 *
+	 * @throws IllegalArgumentException if the depths don't describe a single tree, or there isn't one content for every depth
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T> TreeNode<T> fromPreOrder(int[] depths, List<? extends T> contents) {
+		if (depths.length != contents.size()) {
+			throw new IllegalArgumentException("There are " + depths.length + " depths but " + contents.size() + " contents.");
+		}
+		if (depths.length == 0 || depths[0] != 0) {
+			throw new IllegalArgumentException("The first node must be the root, at depth 0.");
+		}
+		// the index of the last node at each depth, which is the parent of the next node one level deeper
+		int[] lastAtDepth = new int[16];
+		int[] childCounts = new int[depths.length];
+		for (int i = 1; i < depths.length; ++i) {
+			int depth = depths[i];
+			if (depth < 1 || depth > depths[i - 1] + 1) {
+				throw new IllegalArgumentException("Node " + i + " has depth " + depth + ", but it must be between 1 and " + (depths[i - 1] + 1) + ".");
+			}
+			++childCounts[lastAtDepth[depth - 1]];
+			if (depth == lastAtDepth.length) {
+				lastAtDepth = Arrays.copyOf(lastAtDepth, 2 * lastAtDepth.length);
+			}
+			lastAtDepth[depth] = i;
+		}
+		// the constructor appends each node to its parent, whose children already have the exact capacity
+		TreeNode<T>[] parents = new TreeNode[lastAtDepth.length];
+		Iterator<? extends T> contentIter = contents.iterator();
+		TreeNode<T> root = new TreeNode<>(null, contentIter.next(), childCounts[0]);
+		parents[0] = root;
+		for (int i = 1; i < depths.length; ++i) {
+			parents[depths[i]] = new TreeNode<>(parents[depths[i] - 1], contentIter.next(), childCounts[i]);
+		}
+		return root;
+	}
+
+	/**
+	 * Creates a hierarchy of TreeNodes from a stream of records in pre-order (parents before their children),
+	 * reading each record once.
+	 *
+	 * @see #fromPreOrder(int[], List)
+	 */
+	public static <R, T> TreeNode<T> fromPreOrder(Stream<? extends R> records, ToIntFunction<? super R> depthOf, Function<? super R, ? extends T> contentOf) {
+		int[] depths = new int[16];
+		List<T> contents = new ArrayList<>();
+		Iterator<? extends R> iter = records.iterator();
+		while (iter.hasNext()) {
+			R record = iter.next();
+			if (contents.size() == depths.length) {
+				depths = Arrays.copyOf(depths, 2 * depths.length);
+			}
+			depths[contents.size()] = depthOf.applyAsInt(record);
+			contents.add(contentOf.apply(record));
+		}
+		return fromPreOrder(Arrays.copyOf(depths, contents.size()), contents);
+	}
+
+	/**
+	 * Creates a hierarchy of TreeNodes from a stream of records which each have a unique id and the id of their parent,
+	 * which is how trees are commonly stored in databases.
+	 * <p>
+	 * The records may be in any order, and each record is read once.  The root is the only record whose parent id is null,
+	 * and the children of each node are in the same order as their records.  Every node's children are allocated once, at their exact size.
+	 *
+	 * @throws IllegalArgumentException if there isn't exactly one root, an id is duplicated, a parent id doesn't exist, or the ids contain a cycle
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <R, K, T> TreeNode<T> fromParentIds(Stream<? extends R> records, Function<? super R, ? extends K> idOf, Function<? super R, ? extends K> parentIdOf, Function<? super R, ? extends T> contentOf) {
+		Map<K, Integer> indexOfId = new HashMap<>();
+		List<K> parentIds = new ArrayList<>();
+		List<T> contents = new ArrayList<>();
+		Iterator<? extends R> iter = records.iterator();
+		while (iter.hasNext()) {
+			R record = iter.next();
+			K id = idOf.apply(record);
+			if (indexOfId.put(id, contents.size()) != null) {
+				throw new IllegalArgumentException("Duplicate id " + id + ".");
+			}
+			parentIds.add(parentIdOf.apply(record));
+			contents.add(contentOf.apply(record));
+		}
+		// resolve the parents and count the children, so that the nodes can be created at their exact size
+		int size = contents.size();
+		int[] parentIndices = new int[size];
+		int[] childCounts = new int[size];
+		int rootIndex = -1;
+		for (int i = 0; i < size; ++i) {
+			K parentId = parentIds.get(i);
+			if (parentId == null) {
+				if (rootIndex != -1) {
+					throw new IllegalArgumentException("There are multiple roots: " + contents.get(rootIndex) + " and " + contents.get(i) + ".");
+				}
+				rootIndex = i;
+				parentIndices[i] = -1;
+			} else {
+				Integer parentIndex = indexOfId.get(parentId);
+				if (parentIndex == null) {
+					throw new IllegalArgumentException("The parent id " + parentId + " of " + contents.get(i) + " doesn't exist.");
+				}
+				parentIndices[i] = parentIndex;
+				++childCounts[parentIndex];
+			}
 		}
+		if (rootIndex == -1) {
+			throw new IllegalArgumentException("There is no root, which must have a null parent id.");
+		}
+		TreeNode<T>[] nodes = new TreeNode[size];
+		for (int i = 0; i < size; ++i) {
+			nodes[i] = new TreeNode<>(null, contents.get(i), childCounts[i]);
+		}
+		// attach in record order, so that siblings keep the order of their records
+		for (int i = 0; i < size; ++i) {
+			if (parentIndices[i] != -1) {
+				TreeNode<T> parent = nodes[parentIndices[i]];
+				nodes[i].attach(parent, parent.children.size());
+			}
+		}
+		// any node which isn't below the root must be part of a cycle
+		if (TreeStream.depthFirst(treeDef(), nodes[rootIndex]).count() != size) {
+			throw new IllegalArgumentException("The parent ids contain a cycle.");
+		}
+		return nodes[rootIndex];
 	}
 
 	/** {@link TreeDef.Parented} for TreeNodes. */
@@ -199,36 +825,22 @@ public class TreeNode<T> {
 	public static TreeNode<String> createTestData(String... testData) {
 		List<String> test = Arrays.asList(testData);
 
-		// make the first node (which should have 0 leading spaces)
+		// the first node should have 0 leading spaces
 		assert (test.size() > 0);
 		assert (0 == TreeNode.leadingSpaces(test.get(0)));
 
-		TreeNode<String> rootNode = new TreeNode<>(null, test.get(0));
-		TreeNode<String> lastNode = rootNode;
-		int lastSpaces = 0;
-
+		int[] depths = new int[test.size()];
+		List<String> names = new ArrayList<>(test.size());
+		names.add(test.get(0));
 		for (int i = 1; i < test.size(); ++i) {
-			int newSpaces = TreeNode.leadingSpaces(test.get(i));
-			String name = test.get(i).substring(newSpaces);
-			if (newSpaces == lastSpaces + 1) {
-				// one level deeper, so the last guy should be the parent
-				lastNode = new TreeNode<>(lastNode, name);
-				lastSpaces = newSpaces;
-			} else if (newSpaces <= lastSpaces) {
-				// any level back up, or the same level
-				TreeNode<String> properParent = lastNode.getParent();
-				int diff = lastSpaces - newSpaces;
-				for (int j = 0; j < diff; ++j) {
-					properParent = properParent.getParent();
-				}
-				lastNode = new TreeNode<>(properParent, name);
-				lastSpaces = newSpaces;
-			} else {
+			depths[i] = TreeNode.leadingSpaces(test.get(i));
+			if (depths[i] > depths[i - 1] + 1) {
 				throw new IllegalArgumentException("Last element \"" + test.get(i - 1) + "\""
 						+ " and this element \"" + test.get(i) + "\" have too many spaces between them.");
 			}
+			names.add(test.get(i).substring(depths[i]));
 		}
-		return rootNode;
+		return fromPreOrder(depths, names);
 	}
 
 	/** Helps makeDummyTree */
@@ -263,17 +875,92 @@ public class TreeNode<T> {
 		}
 	}
 
+	/**
+	 * Finds a child TreeNode based on its path, using the given index, which
+	 * makes repeated searches a hash lookup per path element.
+	 *
+	 * @throws IllegalArgumentException if no such node exists
+	 * @see #pathIndex()
+	 */
+	public TreeNode<T> findByPath(TreeQuery.PathIndex<TreeNode<T>, T> index, List<T> path) {
+		Optional<TreeNode<T>> result = index.findByPath(this, path);
+		if (result.isPresent()) {
+			return result.get();
+		} else {
+			throw new IllegalArgumentException(this.toString() + " has no element with path " + path);
+		}
+	}
+
+	/**
+	 * Creates an index for {@link #findByPath(TreeQuery.PathIndex, List)} which is keyed on the content of each node.
+	 * <p>
+	 * If the children of a node change, that node must be {@link TreeQuery.PathIndex#invalidate(Object) invalidated}.
+	 */
+	public static <T> TreeQuery.PathIndex<TreeNode<T>, T> pathIndex() {
+		return TreeQuery.pathIndex(treeDef(), TreeNode::getContent);
+	}
+
 	/**
 	 * Searches breadth-first for the TreeNode with the given content.
+	 * <p>
+	 * If {@link #enableContentIndex()} has been called, this is a hash lookup rather than a scan.
 	 * 
 	 * @throws IllegalArgumentException if no such node exists
 	 */
 	public TreeNode<T> findByContent(T content) {
-		Optional<TreeNode<T>> opt = TreeStream.breadthFirst(treeDef(), this).filter(node -> node.getContent().equals(content)).findFirst();
+		Optional<TreeNode<T>> opt;
+		if (isContentIndexEnabled()) {
+			opt = findIndexed(content);
+		} else {
+			opt = TreeStream.breadthFirst(treeDef(), this).filter(node -> node.getContent().equals(content)).findFirst();
+		}
 		if (opt.isPresent()) {
 			return opt.get();
 		} else {
 			throw new IllegalArgumentException(this.toString() + " has no child with content " + content);
 		}
 	}
+
+	/** Returns the node which a breadth-first search from this node would find first, using the content index. */
+	private Optional<TreeNode<T>> findIndexed(T content) {
+		List<TreeNode<T>> candidates = state.byContent.get(content);
+		if (candidates == null) {
+			return Optional.empty();
+		}
+		TreeNode<T> best = null;
+		int bestDepth = Integer.MAX_VALUE;
+		for (TreeNode<T> candidate : candidates) {
+			int depth = depthBelow(candidate);
+			if (depth == -1) {
+				continue;
+			}
+			if (depth < bestDepth || (depth == bestDepth && isBreadthFirstBefore(candidate, best))) {
+				best = candidate;
+				bestDepth = depth;
+			}
+		}
+		return Optional.ofNullable(best);
+	}
+
+	/** Returns the number of levels that {@code node} is below this node, or -1 if it isn't a descendant of this node. */
+	private int depthBelow(TreeNode<T> node) {
+		int depth = 0;
+		while (node != this) {
+			node = node.parent;
+			if (node == null) {
+				return -1;
+			}
+			++depth;
+		}
+		return depth;
+	}
+
+	/** Returns true if {@code a} comes before {@code b} in a breadth-first traversal, where both are at the same depth. */
+	private static <T> boolean isBreadthFirstBefore(TreeNode<T> a, TreeNode<T> b) {
+		while (a.parent != b.parent) {
+			a = a.parent;
+			b = b.parent;
+		}
+		return a.indexInParent < b.indexInParent;
+	}
 }
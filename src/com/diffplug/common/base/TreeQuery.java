@@ -15,18 +15,37 @@
  */
 package com.diffplug.common.base;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** Queries against {@link TreeDef} trees, e.g. lowest common ancestor, list of parents, etc. */
 public class TreeQuery {
@@ -52,6 +71,129 @@ public class TreeQuery {
 		}
 	}
 
+	/**
+	 * Returns the nodes which are a {@link #isDescendantOf(TreeDef.Parented, Object, Object) descendant} of any of the given ancestors, in their original order.
+	 * <p>
+	 * Each node's ancestry is only walked once, no matter how many nodes or ancestors there are.
+	 */
+	public static <T> List<T> filterDescendantsOf(TreeDef.Parented<T> treeDef, Collection<T> nodes, Collection<T> ancestors) {
+		Set<T> ancestorSet = new HashSet<>(ancestors);
+		Map<T, Object> memo = new HashMap<>();
+		List<T> descendants = new ArrayList<>();
+		for (T node : nodes) {
+			T parent = treeDef.parentOf(node);
+			if (parent != null && topmostIn(treeDef, ancestorSet, memo, parent) != null) {
+				descendants.add(node);
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Groups the given nodes by the topmost of the given ancestors which they are equal to or a descendant of.
+	 * <p>
+	 * Nodes which are not under any of the ancestors are left out.  The groups are ordered
+	 * by their first node, and the nodes within each group keep their original order.
+	 */
+	public static <T> Map<T, List<T>> groupByTopmostAncestor(TreeDef.Parented<T> treeDef, Collection<T> nodes, Collection<T> ancestors) {
+		Set<T> ancestorSet = new HashSet<>(ancestors);
+		Map<T, Object> memo = new HashMap<>();
+		Map<T, List<T>> groups = new LinkedHashMap<>();
+		for (T node : nodes) {
+			T topmost = topmostIn(treeDef, ancestorSet, memo, node);
+			if (topmost != null) {
+				groups.computeIfAbsent(topmost, key -> new ArrayList<>()).add(node);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Returns the nodes which are not a descendant of any other given node, in their original order and without duplicates.
+	 * <p>
+	 * Their subtrees are the smallest set of subtrees which contain every one of the given nodes.
+	 */
+	public static <T> List<T> minimalCoveringRoots(TreeDef.Parented<T> treeDef, Collection<T> nodes) {
+		Set<T> nodeSet = new HashSet<>(nodes);
+		Map<T, Object> memo = new HashMap<>();
+		Set<T> roots = new LinkedHashSet<>();
+		for (T node : nodes) {
+			if (node.equals(topmostIn(treeDef, nodeSet, memo, node))) {
+				roots.add(node);
+			}
+		}
+		return new ArrayList<>(roots);
+	}
+
+	/**
+	 * Returns the topmost element of {@code set} which is equal to or an ancestor of the given node, or null if there isn't one.
+	 * <p>
+	 * The answer for every node on the way up is stored in {@code memo}, so that later calls stop as soon as they reach a node which has been visited.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T topmostIn(TreeDef.Parented<T> treeDef, Set<T> set, Map<T, Object> memo, T node) {
+		// the nodes whose answer isn't known yet, with the highest one on top
+		Deque<T> unknown = new ArrayDeque<>();
+		Object topmost = NOT_IN_SET;
+		for (T current = node; current != null; current = treeDef.parentOf(current)) {
+			Object memoized = memo.get(current);
+			if (memoized != null) {
+				topmost = memoized;
+				break;
+			}
+			unknown.push(current);
+		}
+		while (!unknown.isEmpty()) {
+			T next = unknown.pop();
+			if (topmost == NOT_IN_SET && set.contains(next)) {
+				topmost = next;
+			}
+			memo.put(next, topmost);
+		}
+		return topmost == NOT_IN_SET ? null : (T) topmost;
+	}
+
+	/** Marks a node in the memo of {@link #topmostIn(TreeDef.Parented, Set, Map, Object)} which has no ancestor in the set. */
+	private static final Object NOT_IN_SET = new Object();
+
+	/**
+	 * Walks the tree in a depth-first order, calling the given {@link TreeVisitor} for every node that it reaches.
+	 * <p>
+	 * The subtrees for which {@link TreeVisitor#preVisit(Object) preVisit} returns {@code SKIP_SUBTREE} are never
+	 * expanded, and the walk ends as soon as either callback returns {@code TERMINATE}.
+	 *
+	 * @return false if the walk was terminated by the visitor, otherwise true
+	 */
+	public static <T> boolean walk(TreeDef<T> treeDef, T root, TreeVisitor<? super T> visitor) {
+		TreeVisitor.Result rootResult = visitor.preVisit(root);
+		if (rootResult != TreeVisitor.Result.CONTINUE) {
+			return rootResult != TreeVisitor.Result.TERMINATE;
+		}
+		Deque<T> nodes = new ArrayDeque<>();
+		Deque<Iterator<T>> iterators = new ArrayDeque<>();
+		nodes.push(root);
+		iterators.push(treeDef.childIterator(root));
+		while (!nodes.isEmpty()) {
+			Iterator<T> children = iterators.peek();
+			if (children.hasNext()) {
+				T child = children.next();
+				TreeVisitor.Result result = visitor.preVisit(child);
+				if (result == TreeVisitor.Result.TERMINATE) {
+					return false;
+				} else if (result == TreeVisitor.Result.CONTINUE) {
+					nodes.push(child);
+					iterators.push(treeDef.childIterator(child));
+				}
+			} else {
+				iterators.pop();
+				if (visitor.postVisit(nodes.pop()) == TreeVisitor.Result.TERMINATE) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	/** Returns the root of the given tree. */
 	public static <T> T root(TreeDef.Parented<T> treeDef, T node) {
 		T lastParent;
@@ -85,10 +227,226 @@ public class TreeQuery {
 	 * @return a CopyType with the same contents as the source tree
 	 */
 	public static <T, CopyType> CopyType copyLeavesIn(TreeDef<T> def, T root, BiFunction<T, List<CopyType>, CopyType> nodeMapper) {
-		List<CopyType> childrenMapped = def.childrenOf(root).stream().map(child -> {
-			return copyLeavesIn(def, child, nodeMapper);
-		}).collect(Collectors.toList());
-		return nodeMapper.apply(root, childrenMapped);
+		LeavesIn<T, List<CopyType>, CopyType> leavesIn = new LeavesIn<>(def, root, (node, children) -> new ArrayList<>(children.size()), (childrenMapped, mapped) -> {
+			childrenMapped.add(mapped);
+			return childrenMapped;
+		}, nodeMapper);
+		while (leavesIn.advance()) {}
+		return leavesIn.value;
+	}
+
+	/**
+	 * Walks a tree from the leaves in to the root, completing one node at a time in post-order.
+	 * <p>
+	 * Each node starts with {@code start(node, children)}, folds in the result of each of its children
+	 * in order with {@code fold}, and its result is then {@code finish(node, folded)}.
+	 */
+	private static final class LeavesIn<T, A, R> {
+		private final TreeDef<T> def;
+		private final BiFunction<? super T, List<T>, A> start;
+		private final BiFunction<A, R, A> fold;
+		private final BiFunction<? super T, A, R> finish;
+		private final Deque<LeavesInFrame<T, A>> stack = new ArrayDeque<>();
+		/** The node which was most recently completed. */
+		T node;
+		/** The result of the node which was most recently completed. */
+		R value;
+
+		LeavesIn(TreeDef<T> def, T root, BiFunction<? super T, List<T>, A> start, BiFunction<A, R, A> fold, BiFunction<? super T, A, R> finish) {
+			this.def = def;
+			this.start = start;
+			this.fold = fold;
+			this.finish = finish;
+			push(root);
+		}
+
+		private void push(T node) {
+			List<T> children = def.childrenOf(node);
+			stack.push(new LeavesInFrame<>(node, children.iterator(), start.apply(node, children)));
+		}
+
+		/** Completes the next node, and returns false if every node has already been completed. */
+		boolean advance() {
+			while (!stack.isEmpty()) {
+				LeavesInFrame<T, A> frame = stack.peek();
+				if (frame.children.hasNext()) {
+					push(frame.children.next());
+				} else {
+					stack.pop();
+					node = frame.node;
+					value = finish.apply(frame.node, frame.folded);
+					if (!stack.isEmpty()) {
+						LeavesInFrame<T, A> parent = stack.peek();
+						parent.folded = fold.apply(parent.folded, value);
+					}
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** A node whose children are in the process of being folded by {@link LeavesIn}. */
+	private static final class LeavesInFrame<T, A> {
+		final T node;
+		final Iterator<T> children;
+		A folded;
+
+		LeavesInFrame(T node, Iterator<T> children, A folded) {
+			this.node = node;
+			this.children = children;
+			this.folded = folded;
+		}
+	}
+
+	/**
+	 * Copies the given tree of T to CopyType in parallel, starting at the leaf nodes
+	 * of the tree and moving in to the root node.
+	 * <p>
+	 * The children of every node shallower than {@code forkDepth} are copied as separate
+	 * fork-join tasks, and everything deeper is copied sequentially by
+	 * {@link #copyLeavesIn(TreeDef, Object, BiFunction)}.  Both {@code def} and
+	 * {@code nodeMapper} must be safe to call from multiple threads.
+	 *
+	 * @param def		defines the structure of the tree
+	 * @param root		root of the tree
+	 * @param nodeMapper	given an unmapped node, and a list of CopyType nodes which have already been mapped, return a mapped node.
+	 * @param pool		the pool which will execute the copy
+	 * @param forkDepth	nodes at this depth or deeper (the root is depth 0) are copied sequentially
+	 * @return a CopyType with the same contents as the source tree
+	 */
+	public static <T, CopyType> CopyType copyLeavesInParallel(TreeDef<T> def, T root, BiFunction<T, List<CopyType>, CopyType> nodeMapper, ForkJoinPool pool, int forkDepth) {
+		return pool.invoke(new CopyLeavesInTask<>(def, root, nodeMapper, forkDepth));
+	}
+
+	/** Copies a subtree for {@link TreeQuery#copyLeavesInParallel(TreeDef, Object, BiFunction, ForkJoinPool, int)}, forking a task for each child until {@code forkDepth} is exhausted. */
+	@SuppressWarnings("serial")
+	private static class CopyLeavesInTask<T, CopyType> extends RecursiveTask<CopyType> {
+		private final TreeDef<T> def;
+		private final T node;
+		private final BiFunction<T, List<CopyType>, CopyType> nodeMapper;
+		private final int forkDepth;
+
+		private CopyLeavesInTask(TreeDef<T> def, T node, BiFunction<T, List<CopyType>, CopyType> nodeMapper, int forkDepth) {
+			this.def = def;
+			this.node = node;
+			this.nodeMapper = nodeMapper;
+			this.forkDepth = forkDepth;
+		}
+
+		@Override
+		protected CopyType compute() {
+			if (forkDepth <= 0) {
+				return copyLeavesIn(def, node, nodeMapper);
+			}
+			List<T> children = def.childrenOf(node);
+			List<CopyLeavesInTask<T, CopyType>> tasks = new ArrayList<>(children.size());
+			for (T child : children) {
+				tasks.add(new CopyLeavesInTask<>(def, child, nodeMapper, forkDepth - 1));
+			}
+			// invokeAll runs the first task in this thread, so a lone child isn't forked
+			invokeAll(tasks);
+			List<CopyType> childrenMapped = new ArrayList<>(children.size());
+			for (CopyLeavesInTask<T, CopyType> task : tasks) {
+				childrenMapped.add(task.join());
+			}
+			return nodeMapper.apply(node, childrenMapped);
+		}
+	}
+
+	/**
+	 * Aggregates a value over the entire tree, starting at the leaf nodes of the tree and moving in to the root node.
+	 * <p>
+	 * The value of each node starts as {@code leafFn(node)}, and then the value of each of its children is folded in, in order,
+	 * with {@code combineFn(value, childValue)}.  For example, {@code aggregate(def, root, node -> 1, Integer::sum)} counts the
+	 * nodes in the tree, and {@code aggregate(def, root, node -> 0, (depth, childDepth) -> Math.max(depth, childDepth + 1))}
+	 * measures its height.  Only the values along a single path are held in memory at a time.
+	 *
+	 * @param treeDef	defines the structure of the tree
+	 * @param root		root of the tree
+	 * @param leafFn	the value of a node before its children have been combined in, which is the value of a leaf
+	 * @param combineFn	combines the value of a node so far with the value of one of its children
+	 * @return the value of the root
+	 */
+	public static <T, R> R aggregate(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> leafFn, BiFunction<? super R, ? super R, ? extends R> combineFn) {
+		return forEachAggregate(treeDef, root, leafFn, combineFn, (node, value) -> {});
+	}
+
+	/**
+	 * Aggregates a value for every subtree of the tree, and returns them in a map whose iteration order is
+	 * a post-order (every node comes after its descendants).
+	 * <p>
+	 * Nodes are keyed by {@code equals()}, which is fine for a {@link TreeDef} which creates new but equal nodes,
+	 * because equal nodes have equal subtrees.
+	 *
+	 * @see #aggregate(TreeDef, Object, Function, BiFunction)
+	 */
+	public static <T, R> Map<T, R> aggregateAll(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> leafFn, BiFunction<? super R, ? super R, ? extends R> combineFn) {
+		Map<T, R> values = new LinkedHashMap<>();
+		forEachAggregate(treeDef, root, leafFn, combineFn, values::put);
+		return values;
+	}
+
+	/**
+	 * Aggregates a value for every subtree of the tree, and passes each node and its value to {@code consumer}
+	 * as soon as it is complete, which is in a post-order (every node comes after its descendants).
+	 *
+	 * @return the value of the root
+	 * @see #aggregate(TreeDef, Object, Function, BiFunction)
+	 */
+	public static <T, R> R forEachAggregate(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> leafFn, BiFunction<? super R, ? super R, ? extends R> combineFn, BiConsumer<? super T, ? super R> consumer) {
+		LeavesIn<T, R, R> leavesIn = aggregator(treeDef, root, leafFn, combineFn);
+		while (leavesIn.advance()) {
+			consumer.accept(leavesIn.node, leavesIn.value);
+		}
+		return leavesIn.value;
+	}
+
+	/**
+	 * Returns a lazy {@code Stream} of every node and the aggregate value of its subtree, in a post-order
+	 * (every node comes after its descendants).  Only the values along a single path are held in memory at a time.
+	 *
+	 * @see #aggregate(TreeDef, Object, Function, BiFunction)
+	 */
+	public static <T, R> Stream<Map.Entry<T, R>> aggregateStream(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> leafFn, BiFunction<? super R, ? super R, ? extends R> combineFn) {
+		LeavesIn<T, R, R> leavesIn = aggregator(treeDef, root, leafFn, combineFn);
+		Spliterator<Map.Entry<T, R>> spliterator = new Spliterators.AbstractSpliterator<Map.Entry<T, R>>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+			@Override
+			public boolean tryAdvance(Consumer<? super Map.Entry<T, R>> action) {
+				if (leavesIn.advance()) {
+					action.accept(new AbstractMap.SimpleImmutableEntry<>(leavesIn.node, leavesIn.value));
+					return true;
+				} else {
+					return false;
+				}
+			}
+		};
+		return StreamSupport.stream(spliterator, false);
+	}
+
+	/** Returns a {@link LeavesIn} which computes the aggregate of every subtree. */
+	private static <T, R> LeavesIn<T, R, R> aggregator(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> leafFn, BiFunction<? super R, ? super R, ? extends R> combineFn) {
+		return new LeavesIn<T, R, R>(treeDef, root, (node, children) -> leafFn.apply(node), combineFn::apply, (node, value) -> value);
+	}
+
+	/**
+	 * Aggregates a value over the entire tree in parallel, with the same result as {@link #aggregate(TreeDef, Object, Function, BiFunction)}.
+	 * <p>
+	 * This is {@link #copyLeavesInParallel(TreeDef, Object, BiFunction, ForkJoinPool, int)} with a node mapper which
+	 * combines the values of the children in order, so {@code combineFn} doesn't need to be commutative, but
+	 * {@code treeDef}, {@code leafFn} and {@code combineFn} must be safe to call from multiple threads.
+	 *
+	 * @param pool		the pool which will execute the aggregation
+	 * @param forkDepth	nodes at this depth or deeper (the root is depth 0) are aggregated sequentially
+	 */
+	public static <T, R> R aggregateParallel(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> leafFn, BiFunction<? super R, ? super R, ? extends R> combineFn, ForkJoinPool pool, int forkDepth) {
+		return copyLeavesInParallel(treeDef, root, (node, childValues) -> {
+			R value = leafFn.apply(node);
+			for (R childValue : childValues) {
+				value = combineFn.apply(value, childValue);
+			}
+			return value;
+		}, pool, forkDepth);
 	}
 
 	/**
@@ -107,14 +465,29 @@ public class TreeQuery {
 	public static <T, CopyType> CopyType copyRootOut(TreeDef<T> def, T root, BiFunction<T, CopyType, CopyType> mapper) {
 		List<T> children = def.childrenOf(root);
 		CopyType copyRoot = mapper.apply(root, null);
-		copyMutableRecurse(def, root, children, copyRoot, mapper);
+		Deque<CopyRootOutFrame<T, CopyType>> stack = new ArrayDeque<>();
+		stack.push(new CopyRootOutFrame<>(children, copyRoot));
+		while (!stack.isEmpty()) {
+			CopyRootOutFrame<T, CopyType> frame = stack.peek();
+			if (frame.children.hasNext()) {
+				T child = frame.children.next();
+				List<T> grandChildren = def.childrenOf(child);
+				stack.push(new CopyRootOutFrame<>(grandChildren, mapper.apply(child, frame.copied)));
+			} else {
+				stack.pop();
+			}
+		}
 		return copyRoot;
 	}
 
-	private static <T, CopyType> void copyMutableRecurse(TreeDef<T> def, T root, List<T> children, CopyType copiedRoot, BiFunction<T, CopyType, CopyType> mapper) {
-		for (T child : children) {
-			List<T> grandChildren = def.childrenOf(child);
-			copyMutableRecurse(def, root, grandChildren, mapper.apply(child, copiedRoot), mapper);
+	/** A node whose children are in the process of being copied by {@link TreeQuery#copyRootOut(TreeDef, Object, BiFunction)}. */
+	private static final class CopyRootOutFrame<T, CopyType> {
+		final Iterator<T> children;
+		final CopyType copied;
+
+		CopyRootOutFrame(List<T> children, CopyType copied) {
+			this.children = children.iterator();
+			this.copied = copied;
 		}
 	}
 
@@ -137,55 +510,36 @@ public class TreeQuery {
 		}
 	}
 
-	/** Returns the common parent of the two given elements. */
+	/** Returns the common parent of the two given elements, without allocating anything. */
 	private static <T> Optional<T> lowestCommonAncestor(TreeDef.Parented<T> treeDef, T nodeA, T nodeB) {
-		class TreeSearcher {
-			private T tip;
-			private final Set<T> visited;
-
-			public TreeSearcher(T start) {
-				this.tip = start;
-				this.visited = new HashSet<>();
-			}
-
-			public boolean hasMore() {
-				return tip != null;
-			}
-
-			public Optional<T> march(TreeSearcher other) {
-				if (other.visited.contains(tip)) {
-					return Optional.of(tip);
-				} else {
-					visited.add(tip);
-					tip = treeDef.parentOf(tip);
-					return Optional.empty();
-				}
-			}
+		// bring both nodes up to the same depth
+		int depthA = depth(treeDef, nodeA);
+		int depthB = depth(treeDef, nodeB);
+		for (; depthA > depthB; --depthA) {
+			nodeA = treeDef.parentOf(nodeA);
 		}
-
-		// make a list of a's parents (bottom of stack is 'a' itself, top of is root)
-		TreeSearcher searchA = new TreeSearcher(nodeA);
-		TreeSearcher searchB = new TreeSearcher(nodeB);
-
-		Optional<T> commonAncestor = searchB.march(searchA);
-		// so long as both searches
-		while (searchA.hasMore() && searchB.hasMore()) {
-			commonAncestor = searchA.march(searchB);
-			if (commonAncestor.isPresent()) {
-				return commonAncestor;
-			}
-			commonAncestor = searchB.march(searchA);
-			if (commonAncestor.isPresent()) {
-				return commonAncestor;
-			}
+		for (; depthB > depthA; --depthB) {
+			nodeB = treeDef.parentOf(nodeB);
 		}
-		while (searchA.hasMore() && !commonAncestor.isPresent()) {
-			commonAncestor = searchA.march(searchB);
+		// then march them up in lockstep until they meet
+		while (!nodeA.equals(nodeB)) {
+			nodeA = treeDef.parentOf(nodeA);
+			nodeB = treeDef.parentOf(nodeB);
+			if (nodeA == null) {
+				// they're in different trees
+				return Optional.empty();
+			}
 		}
-		while (searchB.hasMore() && !commonAncestor.isPresent()) {
-			commonAncestor = searchB.march(searchA);
+		return Optional.of(nodeA);
+	}
+
+	/** Returns the number of parents between the given node and its root. */
+	private static <T> int depth(TreeDef.Parented<T> treeDef, T node) {
+		int depth = 0;
+		for (T parent = treeDef.parentOf(node); parent != null; parent = treeDef.parentOf(parent)) {
+			++depth;
 		}
-		return commonAncestor;
+		return depth;
 	}
 
 	/** Returns the common parent of N elements. */
@@ -194,7 +548,11 @@ public class TreeQuery {
 		return lowestCommonAncestor(treeDef, Arrays.asList(nodes));
 	}
 
-	/** Returns the common parent of N elements. */
+	/**
+	 * Returns the common parent of N elements.
+	 * <p>
+	 * To answer many queries against the same tree, {@link TreeSnapshot#lcaIndex()} answers each one in constant time.
+	 */
 	public static <T> Optional<T> lowestCommonAncestor(TreeDef.Parented<T> treeDef, List<T> nodes) {
 		if (nodes.size() == 0) {
 			return Optional.empty();
@@ -249,6 +607,118 @@ public class TreeQuery {
 		return path(treeDef, node, Object::toString);
 	}
 
+	/**
+	 * Calls {@code consumer} with every node in the tree and its path, in depth-first order.
+	 * <p>
+	 * The tree is walked once, and each path is built by extending its parent's path within
+	 * a single shared buffer, so the total cost is proportional to the length of the paths.
+	 * Paths start at {@code root}, so they match {@link #path(TreeDef.Parented, Object, Function, String)}
+	 * when {@code root} is the root of the tree.
+	 * 
+	 * @param treeDef	the treeDef
+	 * @param root		the root of the tree
+	 * @param toString	a function to map each node to a string in the path 
+	 * @param delimiter	a string to use as a path separator
+	 * @param consumer	receives each node and its path
+	 */
+	public static <T> void forEachPath(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String delimiter, BiConsumer<? super T, String> consumer) {
+		StringBuilder builder = new StringBuilder(toString.apply(root));
+		consumer.accept(root, builder.toString());
+		// a stack of each level's children, along with the length of their parent's path
+		Deque<Iterator<T>> stack = new ArrayDeque<>();
+		int[] lengths = new int[16];
+		stack.push(treeDef.childIterator(root));
+		lengths[0] = builder.length();
+		while (!stack.isEmpty()) {
+			Iterator<T> children = stack.peek();
+			if (children.hasNext()) {
+				T child = children.next();
+				builder.setLength(lengths[stack.size() - 1]);
+				builder.append(delimiter);
+				builder.append(toString.apply(child));
+				consumer.accept(child, builder.toString());
+				if (stack.size() == lengths.length) {
+					lengths = Arrays.copyOf(lengths, 2 * lengths.length);
+				}
+				lengths[stack.size()] = builder.length();
+				stack.push(treeDef.childIterator(child));
+			} else {
+				stack.pop();
+			}
+		}
+	}
+
+	/**
+	 * Creates a cache for the {@link #path(TreeDef.Parented, Object, Function, String) path} of each node.
+	 * 
+	 * @see PathCache#path(Object)
+	 */
+	public static <T> PathCache<T> pathCache(TreeDef.Parented<T> treeDef, Function<? super T, String> toString, String delimiter) {
+		return new PathCache<>(treeDef, toString, delimiter);
+	}
+
+	/**
+	 * A cache of the path of each node, created by {@link TreeQuery#pathCache(TreeDef.Parented, Function, String)}.
+	 * <p>
+	 * A node's path is built from the cached path of its parent, so the path of every node in a tree can
+	 * be computed in time proportional to the length of the paths.  If a node is renamed or moved, then it
+	 * must be {@link #invalidate(Object) invalidated}.  The cache is not safe to use from multiple threads.
+	 * <p>
+	 * Nodes are keyed by {@code equals()}, so the cache works for a {@link TreeDef} which creates new but equal
+	 * nodes every time, such as {@link TreeDef#forPath(java.util.function.Consumer)} or {@link TreeSnapshot#treeDef()}.
+	 */
+	public static final class PathCache<T> {
+		private final TreeDef.Parented<T> treeDef;
+		private final Function<? super T, String> toString;
+		private final String delimiter;
+		private final Map<T, String> paths = new HashMap<>();
+
+		private PathCache(TreeDef.Parented<T> treeDef, Function<? super T, String> toString, String delimiter) {
+			this.treeDef = treeDef;
+			this.toString = toString;
+			this.delimiter = delimiter;
+		}
+
+		/** Returns the path of the given node, computing and caching it and its ancestors if necessary. */
+		public String path(T node) {
+			String path = paths.get(node);
+			if (path != null) {
+				return path;
+			}
+			// the ancestors which haven't been cached, from the node up to just below the nearest cached ancestor (if any)
+			Deque<T> uncached = new ArrayDeque<>();
+			T current = node;
+			while (current != null && path == null) {
+				uncached.push(current);
+				current = treeDef.parentOf(current);
+				if (current != null) {
+					path = paths.get(current);
+				}
+			}
+			while (!uncached.isEmpty()) {
+				T next = uncached.pop();
+				path = path == null ? toString.apply(next) : path + delimiter + toString.apply(next);
+				paths.put(next, path);
+			}
+			return path;
+		}
+
+		/**
+		 * Forgets the paths of the given node and all of its descendants, which must be called if the node is renamed or moved.
+		 * <p>
+		 * The descendants are found with the treeDef, so for a tree like the filesystem, where a moved node's old
+		 * children can't be listed anymore, this must be called before the move.
+		 */
+		public void invalidate(T node) {
+			TreeIterable.depthFirst(treeDef, node).forEach(paths::remove);
+		}
+
+		/** Forgets every path. */
+		public void invalidateAll() {
+			paths.clear();
+		}
+	}
+
 	/**
 	 * Finds a child TreeNode based on its path.
 	 * <p>
@@ -263,11 +733,19 @@ public class TreeQuery {
 	public static <T, P> Optional<T> findByPath(TreeDef<T> treeDef, T node, List<P> path, BiPredicate<T, P> equality) {
 		T value = node;
 		for (P segment : path) {
-			Optional<T> valueOpt = treeDef.childrenOf(value).stream().filter(n -> equality.test(n, segment)).findFirst();
-			if (!valueOpt.isPresent()) {
-				return valueOpt;
+			T match = null;
+			Iterator<T> children = treeDef.childIterator(value);
+			while (children.hasNext()) {
+				T child = children.next();
+				if (equality.test(child, segment)) {
+					match = child;
+					break;
+				}
 			}
-			value = valueOpt.get();
+			if (match == null) {
+				return Optional.empty();
+			}
+			value = match;
 		}
 		return Optional.of(value);
 	}
@@ -305,6 +783,79 @@ public class TreeQuery {
 		return findByPath(treeDef, node, mapper, path, mapper);
 	}
 
+	/**
+	 * Creates an index for repeatedly finding nodes by their path, where each path element is
+	 * compared against {@code keyMapper} applied to the nodes of the tree.
+	 * <p>
+	 * The first time a node is searched, its children are put into a hash map by key, so every
+	 * later search through that node is a single lookup.
+	 *
+	 * @see PathIndex#findByPath(Object, List)
+	 */
+	public static <T, K> PathIndex<T, K> pathIndex(TreeDef<T> treeDef, Function<? super T, ? extends K> keyMapper) {
+		return new PathIndex<>(treeDef, keyMapper);
+	}
+
+	/**
+	 * An index for finding nodes by their path, created by {@link TreeQuery#pathIndex(TreeDef, Function)}.
+	 * <p>
+	 * The index is safe to use from multiple threads.  It remembers the children of every node it
+	 * has searched, so if the tree changes, the changed nodes must be {@link #invalidate(Object) invalidated}.
+	 */
+	public static final class PathIndex<T, K> {
+		private final TreeDef<T> treeDef;
+		private final Function<? super T, ? extends K> keyMapper;
+		private final Map<T, Map<K, T>> childrenByKey = new ConcurrentHashMap<>();
+
+		private PathIndex(TreeDef<T> treeDef, Function<? super T, ? extends K> keyMapper) {
+			this.treeDef = treeDef;
+			this.keyMapper = keyMapper;
+		}
+
+		/** Returns the children of the given node, keyed by {@code keyMapper}.  If multiple children have the same key, the first one wins. */
+		private Map<K, T> childrenByKey(T node) {
+			return childrenByKey.computeIfAbsent(node, n -> {
+				Map<K, T> byKey = new HashMap<>();
+				Iterator<T> children = treeDef.childIterator(n);
+				while (children.hasNext()) {
+					T child = children.next();
+					byKey.putIfAbsent(keyMapper.apply(child), child);
+				}
+				return byKey;
+			});
+		}
+
+		/**
+		 * Finds a child node based on its path.
+		 * <p>
+		 * Searches the child nodes for the first element, then that
+		 * node's children for the second element, etc.
+		 *
+		 * @param node	starting point for the search
+		 * @param path	the keys of the nodes we're looking for
+		 */
+		public Optional<T> findByPath(T node, List<? extends K> path) {
+			T value = node;
+			for (K segment : path) {
+				value = childrenByKey(value).get(segment);
+				if (value == null) {
+					return Optional.empty();
+				}
+			}
+			return Optional.of(value);
+		}
+
+		/** Forgets the children of the given node, which must be called if they have changed. */
+		public void invalidate(T node) {
+			childrenByKey.remove(node);
+		}
+
+		/** Forgets the children of every node. */
+		public void invalidateAll() {
+			childrenByKey.clear();
+		}
+	}
+
 	/**
 	 * Converts the entire tree into a string-based representation.
 	 * 
@@ -333,18 +884,82 @@ public class TreeQuery {
 	 */
 	public static <T> String toString(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String indent) {
 		StringBuilder builder = new StringBuilder();
-		builder.append(toString.apply(root));
-		builder.append("\n");
-		toStringHelper(treeDef, root, toString, indent, builder, indent);
+		try {
+			print(treeDef, root, toString, indent, builder);
+		} catch (IOException e) {
+			// StringBuilder never throws IOException
+			throw Errors.asRuntime(e);
+		}
 		return builder.toString();
 	}
 
-	private static <T> void toStringHelper(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String indent, StringBuilder builder, String prefix) {
-		for (T child : treeDef.childrenOf(root)) {
-			builder.append(prefix);
-			builder.append(toString.apply(child));
-			builder.append("\n");
-			toStringHelper(treeDef, child, toString, indent, builder, prefix + indent);
+	/**
+	 * Prints the entire tree to the given {@link StringPrinter}, in the same format as {@link #toString(TreeDef, Object, Function, String)}.
+	 * 
+	 * @see #print(TreeDef, Object, Function, String, Appendable)
+	 */
+	public static <T> void print(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String indent, StringPrinter printer) {
+		try {
+			print(treeDef, root, toString, indent, printer.toWriter());
+		} catch (IOException e) {
+			// StringPrinter's Writer never throws IOException
+			throw Errors.asRuntime(e);
+		}
+	}
+
+	/**
+	 * Prints the entire tree to the given {@link Appendable}, in the same format as {@link #toString(TreeDef, Object, Function, String)}.
+	 * <p>
+	 * Each node is appended as soon as it is visited, and the indentation is written from a single buffer
+	 * which is as long as the deepest indentation, so rendering a huge tree to a file doesn't require
+	 * holding the rendering, or an indentation string per depth, in memory.
+	 * 
+	 * @param treeDef	the treeDef
+	 * @param root		the root of the tree
+	 * @param toString	the function which generates the name for each node in the tree
+	 * @param indent	the string to use for each level of indentation
+	 * @param appendable	the destination of the rendering
+	 * @throws IOException	if {@code appendable} throws
+	 */
+	public static <T> void print(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String indent, Appendable appendable) throws IOException {
+		appendable.append(toString.apply(root));
+		appendable.append("\n");
+		// holds the indentation for the deepest level so far, and each level writes a prefix of it
+		char[] indentation = new char[0];
+		Deque<Iterator<T>> stack = new ArrayDeque<>();
+		stack.push(treeDef.childIterator(root));
+		while (!stack.isEmpty()) {
+			Iterator<T> children = stack.peek();
+			if (children.hasNext()) {
+				T child = children.next();
+				int indentLength = stack.size() * indent.length();
+				if (indentation.length < indentLength) {
+					int oldLength = indentation.length;
+					indentation = Arrays.copyOf(indentation, Math.max(indentLength, 2 * oldLength));
+					for (int i = oldLength; i < indentation.length; ++i) {
+						indentation[i] = indent.charAt(i % indent.length());
+					}
+				}
+				appendIndentation(appendable, indentation, indentLength, indent, stack.size());
+				appendable.append(toString.apply(child));
+				appendable.append("\n");
+				stack.push(treeDef.childIterator(child));
+			} else {
+				stack.pop();
+			}
+		}
+	}
+
+	/** Appends the first {@code length} chars of {@code indentation}, which is {@code indent} repeated {@code depth} times, without creating a String. */
+	private static void appendIndentation(Appendable appendable, char[] indentation, int length, String indent, int depth) throws IOException {
+		if (appendable instanceof Writer) {
+			((Writer) appendable).write(indentation, 0, length);
+		} else if (appendable instanceof StringBuilder) {
+			((StringBuilder) appendable).append(indentation, 0, length);
+		} else {
+			for (int i = 0; i < depth; ++i) {
+				appendable.append(indent);
+			}
 		}
 	}
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Function;
+
+/**
+ * An immutable copy of a tree, whose structure is stored in {@code int} arrays.
+ * <p>
+ * Every node is identified by its index in a pre-order (depth-first) traversal of the tree,
+ * so the root is always {@code 0}, and the descendants of a node are exactly the
+ * {@link #subtreeSizeOf(int)} nodes which follow it.  This makes navigation cache-friendly
+ * and allocation-free, and lets {@link #isDescendantOf(int, int)} run in constant time.
+ * <p>
+ * Use {@link #treeDef()} to run any of the algorithms in {@link TreeQuery}, {@link TreeStream},
+ * etc. against the snapshot.
+ */
+public final class TreeSnapshot<T> {
+	/** The index which represents "no node", e.g. the parent of the root. */
+	public static final int NONE = -1;
+
+	private final Object[] contents;
+	private final int[] parent;
+	private final int[] depth;
+	private final int[] subtreeSize;
+	/** The children of node {@code i} are {@code childIndex[childStart[i]]} through {@code childIndex[childStart[i + 1] - 1]}. */
+	private final int[] childStart;
+	private final int[] childIndex;
+
+	/** Creates a snapshot with new contents, which shares the (immutable) structure of an existing snapshot. */
+	private TreeSnapshot(Object[] contents, TreeSnapshot<?> structure) {
+		this.contents = contents;
+		this.parent = structure.parent;
+		this.depth = structure.depth;
+		this.subtreeSize = structure.subtreeSize;
+		this.childStart = structure.childStart;
+		this.childIndex = structure.childIndex;
+	}
+
+	private TreeSnapshot(Object[] contents, int[] parent, int[] depth, int[] subtreeSize) {
+		this.contents = contents;
+		this.parent = parent;
+		this.depth = depth;
+		this.subtreeSize = subtreeSize;
+		int size = contents.length;
+		// count the children of each node
+		childStart = new int[size + 1];
+		for (int i = 1; i < size; ++i) {
+			++childStart[parent[i] + 1];
+		}
+		for (int i = 0; i < size; ++i) {
+			childStart[i + 1] += childStart[i];
+		}
+		// in pre-order, every node's children are encountered in order
+		childIndex = new int[Math.max(0, size - 1)];
+		int[] filled = new int[size];
+		for (int i = 1; i < size; ++i) {
+			int p = parent[i];
+			childIndex[childStart[p] + filled[p]++] = i;
+		}
+	}
+
+	/** Creates a snapshot of the tree below {@code root}. */
+	public static <T> TreeSnapshot<T> of(TreeDef<T> treeDef, T root) {
+		List<Object> contents = new ArrayList<>();
+		int[] parent = new int[16];
+		int[] depth = new int[16];
+		int[] subtreeSize = new int[16];
+
+		contents.add(root);
+		parent[0] = NONE;
+		Deque<SnapshotFrame<T>> stack = new ArrayDeque<>();
+		stack.push(new SnapshotFrame<>(0, treeDef.childIterator(root)));
+		while (!stack.isEmpty()) {
+			SnapshotFrame<T> frame = stack.peek();
+			if (frame.children.hasNext()) {
+				T child = frame.children.next();
+				int index = contents.size();
+				if (index == parent.length) {
+					parent = Arrays.copyOf(parent, 2 * index);
+					depth = Arrays.copyOf(depth, 2 * index);
+					subtreeSize = Arrays.copyOf(subtreeSize, 2 * index);
+				}
+				contents.add(child);
+				parent[index] = frame.index;
+				depth[index] = stack.size();
+				stack.push(new SnapshotFrame<>(index, treeDef.childIterator(child)));
+			} else {
+				stack.pop();
+				subtreeSize[frame.index] = contents.size() - frame.index;
+			}
+		}
+		int size = contents.size();
+		return new TreeSnapshot<>(contents.toArray(), Arrays.copyOf(parent, size), Arrays.copyOf(depth, size), Arrays.copyOf(subtreeSize, size));
+	}
+
+	/** A node whose children are in the process of being copied by {@link TreeSnapshot#of(TreeDef, Object)}. */
+	private static final class SnapshotFrame<T> {
+		final int index;
+		final Iterator<T> children;
+
+		SnapshotFrame(int index, Iterator<T> children) {
+			this.index = index;
+			this.children = children;
+		}
+	}
+
+	/** Returns a snapshot with the same structure, whose contents have been transformed by {@code mapper}. */
+	public <R> TreeSnapshot<R> map(Function<? super T, ? extends R> mapper) {
+		Object[] mapped = new Object[contents.length];
+		for (int i = 0; i < contents.length; ++i) {
+			mapped[i] = mapper.apply(contentOf(i));
+		}
+		return new TreeSnapshot<>(mapped, this);
+	}
+
+	/** Returns the number of nodes in the tree. */
+	public int size() {
+		return contents.length;
+	}
+
+	/** Returns the root node, which is always {@code 0}. */
+	public int root() {
+		return 0;
+	}
+
+	/** Returns the content of the given node. */
+	@SuppressWarnings("unchecked")
+	public T contentOf(int node) {
+		return (T) contents[node];
+	}
+
+	/** Returns the parent of the given node, or {@link #NONE} for the root. */
+	public int parentOf(int node) {
+		return parent[node];
+	}
+
+	/** Returns the depth of the given node, where the root has depth {@code 0}. */
+	public int depthOf(int node) {
+		return depth[node];
+	}
+
+	/** Returns the number of nodes in the subtree of the given node, including the node itself. */
+	public int subtreeSizeOf(int node) {
+		return subtreeSize[node];
+	}
+
+	/** Returns the number of children of the given node. */
+	public int childCount(int node) {
+		return childStart[node + 1] - childStart[node];
+	}
+
+	/** Returns the child of {@code node} at the given index. */
+	public int childOf(int node, int index) {
+		if (index < 0 || index >= childCount(node)) {
+			throw new IndexOutOfBoundsException("Node " + node + " has " + childCount(node) + " children, asked for " + index);
+		}
+		return childIndex[childStart[node] + index];
+	}
+
+	/** Returns the first child of the given node, or {@link #NONE} if it has no children. */
+	public int firstChildOf(int node) {
+		return subtreeSize[node] > 1 ? node + 1 : NONE;
+	}
+
+	/** Returns the next sibling of the given node, or {@link #NONE} if it is the last child (or the root). */
+	public int nextSiblingOf(int node) {
+		int p = parent[node];
+		if (p == NONE) {
+			return NONE;
+		}
+		int next = node + subtreeSize[node];
+		return next < p + subtreeSize[p] ? next : NONE;
+	}
+
+	/** Returns true iff child is a descendant of parent, in constant time. */
+	public boolean isDescendantOf(int child, int parent) {
+		return parent < child && child < parent + subtreeSize[parent];
+	}
+
+	/** Returns true iff child is a descendant of parent, or if child is equal to parent, in constant time. */
+	public boolean isDescendantOfOrEqualTo(int child, int parent) {
+		return parent <= child && child < parent + subtreeSize[parent];
+	}
+
+	/** Lazily-populated map from content to node, for {@link #indexOf(Object)}. */
+	private volatile Map<T, Integer> indexByContent;
+
+	/**
+	 * Returns the first node (in pre-order) whose content is equal to the given content, or {@link #NONE} if there is no such node.
+	 * <p>
+	 * The first call builds a hash index of the entire snapshot, after which every call is constant-time.
+	 */
+	public int indexOf(T content) {
+		Map<T, Integer> index = indexByContent;
+		if (index == null) {
+			// it's fine if multiple threads race to build this, they'll all build the same thing
+			index = new HashMap<>(contents.length * 4 / 3 + 1);
+			for (int i = contents.length - 1; i >= 0; --i) {
+				index.put(contentOf(i), i);
+			}
+			indexByContent = index;
+		}
+		Integer node = index.get(content);
+		return node == null ? NONE : node;
+	}
+
+	/**
+	 * Builds an index which answers lowest-common-ancestor queries in constant time.
+	 * <p>
+	 * The index is a sparse table of minimum-depth nodes over the pre-order, so it takes
+	 * {@code O(n log n)} time and memory to build.
+	 */
+	public LcaIndex lcaIndex() {
+		return new LcaIndex();
+	}
+
+	/** Answers lowest-common-ancestor queries against a {@link TreeSnapshot} in constant time, without allocating. */
+	public final class LcaIndex {
+		/** {@code table[k][i]} is the node with the minimum depth among the {@code 2^k} nodes starting at {@code i}. */
+		private final int[][] table;
+
+		private LcaIndex() {
+			int size = contents.length;
+			int levels = 1;
+			while ((1 << levels) <= size) {
+				++levels;
+			}
+			table = new int[levels][];
+			table[0] = new int[size];
+			for (int i = 0; i < size; ++i) {
+				table[0][i] = i;
+			}
+			for (int k = 1; k < levels; ++k) {
+				int[] prev = table[k - 1];
+				int half = 1 << (k - 1);
+				int[] level = new int[size - (1 << k) + 1];
+				for (int i = 0; i < level.length; ++i) {
+					int left = prev[i];
+					int right = prev[i + half];
+					level[i] = depth[left] <= depth[right] ? left : right;
+				}
+				table[k] = level;
+			}
+		}
+
+		/** Returns the node with the minimum depth among the nodes {@code from} through {@code to}, inclusive. */
+		private int minDepth(int from, int to) {
+			int k = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+			int left = table[k][from];
+			int right = table[k][to - (1 << k) + 1];
+			return depth[left] <= depth[right] ? left : right;
+		}
+
+		/** Returns the lowest common ancestor of the two given nodes, which may be one of the nodes themselves. */
+		public int lowestCommonAncestor(int nodeA, int nodeB) {
+			if (nodeA == nodeB) {
+				return nodeA;
+			}
+			int first = Math.min(nodeA, nodeB);
+			int last = Math.max(nodeA, nodeB);
+			// the shallowest node after first (up to last) is a child of the ancestor
+			return parent[minDepth(first + 1, last)];
+		}
+
+		/** Returns the lowest common ancestor of all the given nodes, or {@link TreeSnapshot#NONE} if there are none. */
+		public int lowestCommonAncestor(int... nodes) {
+			if (nodes.length == 0) {
+				return NONE;
+			}
+			int soFar = nodes[0];
+			for (int i = 1; i < nodes.length; ++i) {
+				soFar = lowestCommonAncestor(soFar, nodes[i]);
+			}
+			return soFar;
+		}
+	}
+
+	/** Returns a {@link TreeDef.Parented} over the nodes of this snapshot. */
+	public TreeDef.Parented<Integer> treeDef() {
+		return new TreeDef.Parented<Integer>() {
+			@Override
+			public List<Integer> childrenOf(Integer node) {
+				return new ChildList(node);
+			}
+
+			@Override
+			public Integer parentOf(Integer node) {
+				int p = parent[node];
+				return p == NONE ? null : p;
+			}
+		};
+	}
+
+	/** A read-only view of a node's children. */
+	private final class ChildList extends AbstractList<Integer> implements RandomAccess {
+		private final int start, end;
+
+		private ChildList(int node) {
+			this.start = childStart[node];
+			this.end = childStart[node + 1];
+		}
+
+		@Override
+		public Integer get(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + (end - start));
+			}
+			return childIndex[start + index];
+		}
+
+		@Override
+		public int size() {
+			return end - start;
+		}
+	}
+}
@@ -15,6 +15,22 @@
  */
 package com.diffplug.common.base;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -36,4 +52,312 @@ public class TreeStream {
 	public static <T> Stream<T> depthFirst(TreeDef<T> treeDef, T node) {
 		return StreamSupport.stream(TreeIterable.depthFirst(treeDef, node).spliterator(), false);
 	}
+
+	/** Creates a {@code Stream} that iterates across the tree below {@code node} in a post-order, where every node comes after all of its descendants, and ends at {@code node}. */
+	public static <T> Stream<T> postOrder(TreeDef<T> treeDef, T node) {
+		return StreamSupport.stream(TreeIterable.postOrder(treeDef, node).spliterator(), false);
+	}
+
+	/** Creates a {@code Stream} of {@link TreeEntry} which is otherwise the same as {@link #depthFirst(TreeDef, Object)}. */
+	public static <T> Stream<TreeEntry<T>> depthFirstEntries(TreeDef<T> treeDef, T node) {
+		return StreamSupport.stream(TreeIterable.depthFirstEntries(treeDef, node).spliterator(), false);
+	}
+
+	/** Creates a {@code Stream} of {@link TreeEntry} which is otherwise the same as {@link #postOrder(TreeDef, Object)}. */
+	public static <T> Stream<TreeEntry<T>> postOrderEntries(TreeDef<T> treeDef, T node) {
+		return StreamSupport.stream(TreeIterable.postOrderEntries(treeDef, node).spliterator(), false);
+	}
+
+	/**
+	 * Creates a {@code Stream} that starts at {@code node} and iterates deeper into the tree in a depth-first order, under the control of the given {@link TreeVisitor}.
+	 * 
+	 * @see TreeIterable#depthFirst(TreeDef, Object, TreeVisitor)
+	 */
+	public static <T> Stream<T> depthFirst(TreeDef<T> treeDef, T node, TreeVisitor<? super T> visitor) {
+		return StreamSupport.stream(TreeIterable.depthFirst(treeDef, node, visitor).spliterator(), false);
+	}
+
+	/**
+	 * Creates a parallel {@code Stream} that starts at {@code node} and iterates deeper into the tree in a bread-first order.
+	 * <p>
+	 * The pending frontier of the traversal is split between workers, so the stream is unordered,
+	 * and {@code treeDef} must be safe to call from multiple threads.
+	 */
+	public static <T> Stream<T> parallelBreadthFirst(TreeDef<T> treeDef, T node) {
+		return StreamSupport.stream(new TreeSpliterator<>(treeDef, node, false), true);
+	}
+
+	/**
+	 * Creates a parallel {@code Stream} that starts at {@code node} and iterates deeper into the tree in a depth-first order.
+	 * <p>
+	 * The pending frontier of the traversal is split between workers, and the encounter order
+	 * is the same as {@link #depthFirst(TreeDef, Object)}.  {@code treeDef} must be safe to call
+	 * from multiple threads.
+	 */
+	public static <T> Stream<T> parallelDepthFirst(TreeDef<T> treeDef, T node) {
+		return StreamSupport.stream(new TreeSpliterator<>(treeDef, node, true), true);
+	}
+
+	/**
+	 * Creates a {@code Stream} of every node in the tree below {@code node} (inclusive), in the order
+	 * they are discovered by a parallel walk on {@code pool}, which buffers at most 1024 nodes ahead of the stream.
+	 *
+	 * @see #parallelDiscover(TreeDef, Object, ForkJoinPool, int)
+	 */
+	public static <T> Stream<T> parallelDiscover(TreeDef<T> treeDef, T node, ForkJoinPool pool) {
+		return parallelDiscover(treeDef, node, pool, 1024);
+	}
+
+	/**
+	 * Creates a {@code Stream} of every node in the tree below {@code node} (inclusive), in the order
+	 * they are discovered by a parallel walk on {@code pool}.
+	 * <p>
+	 * Every node's children are listed by a separate fork-join task, so the walk is spread across
+	 * the pool's workers (and bounded by its parallelism), and nodes are available to the stream as
+	 * soon as they have been found.  This is useful for trees where {@code childrenOf} is slow,
+	 * such as {@link TreeDef#forPath(Consumer)}.  At most {@code capacity} nodes are buffered
+	 * ahead of the stream, after which the walk waits for the stream to catch up, so the stream
+	 * must not be consumed by a task in {@code pool}.
+	 * <p>
+	 * The returned stream is sequential, and the order of its elements is unspecified.  Any exception
+	 * thrown by {@code treeDef} ends the walk, and is rethrown by the stream.  Closing the stream
+	 * cancels any part of the walk which is still in progress, and so does abandoning the stream
+	 * without closing it (e.g. after {@code findFirst()}), once it has been garbage-collected.
+	 */
+	public static <T> Stream<T> parallelDiscover(TreeDef<T> treeDef, T node, ForkJoinPool pool, int capacity) {
+		Discovery<T> discovery = new Discovery<>(treeDef, capacity);
+		Iterator<T> iterator = discovery.start(node, pool);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false).onClose(discovery::close);
+	}
+
+	/**
+	 * Implementation of {@link TreeStream#parallelDiscover(TreeDef, Object, ForkJoinPool, int)}.
+	 * <p>
+	 * The walk only holds a weak reference to the stream's iterator, so that it can tell when the stream has been abandoned.
+	 */
+	private static final class Discovery<T> {
+		/** Marks the end of the walk. */
+		private static final Object DONE = new Object();
+		/** How often a task which is waiting for room in the queue checks whether the stream has been abandoned. */
+		private static final long POLL_MILLIS = 100;
+
+		private final TreeDef<T> treeDef;
+		/** Nodes which have been discovered, followed by DONE when the walk is over. */
+		private final BlockingQueue<Object> found;
+		/** The number of tasks which have been forked but haven't finished. */
+		private final AtomicInteger pending = new AtomicInteger();
+		/** True if nobody will read the queue anymore. */
+		private volatile boolean closed = false;
+		private volatile Throwable failure;
+		private WeakReference<DiscoveryIterator<T>> consumer;
+
+		private Discovery(TreeDef<T> treeDef, int capacity) {
+			this.treeDef = treeDef;
+			this.found = new ArrayBlockingQueue<>(capacity);
+		}
+
+		private Iterator<T> start(T node, ForkJoinPool pool) {
+			DiscoveryIterator<T> iterator = new DiscoveryIterator<>(this);
+			consumer = new WeakReference<>(iterator);
+			pending.set(1);
+			pool.execute(new Task(node));
+			return iterator;
+		}
+
+		private void close() {
+			closed = true;
+		}
+
+		/** Returns true if the stream was closed, or garbage-collected without being closed. */
+		private boolean isAbandoned() {
+			if (!closed && consumer.get() == null) {
+				closed = true;
+			}
+			return closed;
+		}
+
+		/** Adds the given element to the queue, waiting for room unless the stream is abandoned first. */
+		private void put(Object element) throws InterruptedException {
+			while (!isAbandoned()) {
+				if (found.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		}
+
+		/** Lists the children of a single node. */
+		@SuppressWarnings("serial")
+		private final class Task extends RecursiveAction {
+			private final T node;
+
+			private Task(T node) {
+				this.node = node;
+			}
+
+			@Override
+			protected void compute() {
+				try {
+					if (failure == null && !isAbandoned()) {
+						put(node);
+						for (T child : treeDef.childrenOf(node)) {
+							pending.incrementAndGet();
+							new Task(child).fork();
+						}
+					}
+				} catch (Throwable e) {
+					failure = e;
+				} finally {
+					// the last task to finish ends the walk, which is the only place that DONE is added
+					if (pending.decrementAndGet() == 0) {
+						try {
+							put(DONE);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** The consuming side of a {@link Discovery}, which the walk only references weakly. */
+	private static final class DiscoveryIterator<T> implements Iterator<T> {
+		private final Discovery<T> discovery;
+		/** The next element of the iterator, or null if it hasn't been taken from the queue yet. */
+		private Object next;
+
+		private DiscoveryIterator(Discovery<T> discovery) {
+			this.discovery = discovery;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				try {
+					next = discovery.found.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw Errors.asRuntime(e);
+				}
+			}
+			if (next == Discovery.DONE) {
+				if (discovery.failure != null) {
+					throw Errors.asRuntime(discovery.failure);
+				}
+				return false;
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T result = (T) next;
+			next = null;
+			return result;
+		}
+	}
+
+	/** A {@link Spliterator} which splits its pending frontier to support parallel traversal. */
+	static final class TreeSpliterator<T> implements Spliterator<T> {
+		/** The maximum number of nodes which will be expanded ahead of time to find something to split. */
+		private static final int MAX_EXPANDED = 1024;
+
+		private final TreeDef<T> treeDef;
+		private final boolean depthFirst;
+		/** Nodes whose children have already been added to the frontier, but which haven't been returned yet. */
+		private final Deque<T> expanded;
+		/** For depthFirst, the last element is next.  For breadthFirst, the first element is next. */
+		private final Deque<T> frontier;
+
+		TreeSpliterator(TreeDef<T> treeDef, T node, boolean depthFirst) {
+			this(treeDef, depthFirst, new ArrayDeque<>(), new ArrayDeque<>());
+			frontier.add(node);
+		}
+
+		private TreeSpliterator(TreeDef<T> treeDef, boolean depthFirst, Deque<T> expanded, Deque<T> frontier) {
+			this.treeDef = treeDef;
+			this.depthFirst = depthFirst;
+			this.expanded = expanded;
+			this.frontier = frontier;
+		}
+
+		/** Removes the next node from the frontier, and adds its children to the frontier. */
+		private T expandNext() {
+			if (depthFirst) {
+				T next = frontier.removeLast();
+				List<T> children = treeDef.childrenOf(next);
+				ListIterator<T> iterator = children.listIterator(children.size());
+				while (iterator.hasPrevious()) {
+					frontier.addLast(iterator.previous());
+				}
+				return next;
+			} else {
+				T next = frontier.removeFirst();
+				frontier.addAll(treeDef.childrenOf(next));
+				return next;
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (!expanded.isEmpty()) {
+				action.accept(expanded.removeFirst());
+				return true;
+			} else if (!frontier.isEmpty()) {
+				action.accept(expandNext());
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			while (!expanded.isEmpty()) {
+				action.accept(expanded.removeFirst());
+			}
+			while (!frontier.isEmpty()) {
+				action.accept(expandNext());
+			}
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			// a tree traversal usually starts with a single node, so we
+			// expand a few nodes in order to find something worth splitting
+			while (frontier.size() == 1 && expanded.size() < MAX_EXPANDED) {
+				expanded.addLast(expandNext());
+			}
+			int half = frontier.size() / 2;
+			if (half == 0) {
+				return null;
+			}
+			// the prefix gets the expanded nodes and the half of the frontier which will be returned first
+			Deque<T> prefixFrontier = new ArrayDeque<>(half);
+			for (int i = 0; i < half; ++i) {
+				if (depthFirst) {
+					prefixFrontier.addFirst(frontier.removeLast());
+				} else {
+					prefixFrontier.addLast(frontier.removeFirst());
+				}
+			}
+			Deque<T> prefixExpanded = new ArrayDeque<>(expanded);
+			expanded.clear();
+			return new TreeSpliterator<>(treeDef, depthFirst, prefixExpanded, prefixFrontier);
+		}
+
+		@Override
+		public long estimateSize() {
+			return frontier.isEmpty() ? expanded.size() : Long.MAX_VALUE;
+		}
+
+		@Override
+		public int characteristics() {
+			return depthFirst ? Spliterator.ORDERED : 0;
+		}
+	}
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.function.Predicate;
+
+/**
+ * Callbacks for a depth-first traversal of a tree, which can skip subtrees and end the traversal early.
+ * <p>
+ * Modeled after {@link java.nio.file.FileVisitor}: {@link #postVisit(Object)} is only called for
+ * nodes whose {@link #preVisit(Object)} returned {@link Result#CONTINUE}, after all of their
+ * descendants have been visited.
+ *
+ * @see TreeQuery#walk(TreeDef, Object, TreeVisitor)
+ * @see TreeIterable#depthFirst(TreeDef, Object, TreeVisitor)
+ */
+@FunctionalInterface
+public interface TreeVisitor<T> {
+	/** The result of visiting a node, which determines what happens next. */
+	public enum Result {
+		/** Continue the traversal. */
+		CONTINUE,
+		/** Continue the traversal, without visiting the descendants of this node.  In {@link #postVisit(Object)}, the same as {@code CONTINUE}. */
+		SKIP_SUBTREE,
+		/** End the traversal immediately. */
+		TERMINATE
+	}
+
+	/** Called when a node is reached, before any of its descendants. */
+	Result preVisit(T node);
+
+	/** Called after all of the descendants of a node have been visited.  The default implementation returns {@link Result#CONTINUE}. */
+	default Result postVisit(T node) {
+		return Result.CONTINUE;
+	}
+
+	/** Creates a TreeVisitor which descends into the nodes that match the given predicate, and skips the subtrees of the rest. */
+	public static <T> TreeVisitor<T> descendingInto(Predicate<? super T> predicate) {
+		return node -> predicate.test(node) ? Result.CONTINUE : Result.SKIP_SUBTREE;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PathAttributesTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testForPathAttributes() throws IOException {
+		Path root = folder.getRoot().toPath();
+		for (String dir : Arrays.asList("a/b/c", "a/d", "e")) {
+			Files.createDirectories(root.resolve(dir));
+		}
+		for (String file : Arrays.asList("a/b/c/1.txt", "a/d/2.txt", "a/d/3.txt", "4.txt")) {
+			Files.write(root.resolve(file), file.getBytes(StandardCharsets.UTF_8));
+		}
+		Set<Path> expected;
+		try (Stream<Path> walk = Files.walk(root)) {
+			expected = walk.collect(Collectors.toSet());
+		}
+		List<PathAttributes> walked = TreeStream.depthFirst(TreeDef.forPathAttributes(Errors.rethrow()), PathAttributes.read(root)).collect(Collectors.toList());
+		Assert.assertEquals(expected, walked.stream().map(PathAttributes::getPath).collect(Collectors.toSet()));
+		for (PathAttributes node : walked) {
+			Assert.assertEquals(Files.isDirectory(node.getPath()), node.isDirectory());
+			if (node.isRegularFile()) {
+				Assert.assertEquals(Files.size(node.getPath()), node.size());
+			}
+		}
+		PathAttributes aD = walked.stream().filter(node -> node.getPath().endsWith("d")).findFirst().get();
+		Assert.assertEquals(root.resolve("a"), TreeDef.forPathAttributes(Errors.rethrow()).parentOf(aD).getPath());
+
+		// the attributes were read during the walk, so they're still available after the file is gone
+		PathAttributes four = walked.stream().filter(node -> node.getPath().endsWith("4.txt")).findFirst().get();
+		Files.delete(four.getPath());
+		Assert.assertTrue(four.isRegularFile());
+		Assert.assertEquals("4.txt".length(), four.size());
+	}
+
+	@Test
+	public void testParentIsNotReadAgain() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path deepest = Files.createDirectories(root.resolve("a/b/c"));
+		TreeDef.Parented<PathAttributes> treeDef = TreeDef.forPathAttributes(Errors.rethrow());
+		PathAttributes walkRoot = PathAttributes.read(root.resolve("a"));
+		PathAttributes c = TreeStream.depthFirst(treeDef, walkRoot).filter(node -> node.getPath().equals(deepest)).findFirst().get();
+		// the parent of the walk's root is read once, and then kept
+		PathAttributes rootAttributes = treeDef.parentOf(walkRoot);
+		Assert.assertEquals(root, rootAttributes.getPath());
+		Assert.assertSame(rootAttributes, treeDef.parentOf(walkRoot));
+
+		// once the files are gone, only the attributes which were already read are available
+		Files.delete(deepest);
+		Files.delete(deepest.getParent());
+		Files.delete(root.resolve("a"));
+		Assert.assertSame(walkRoot, treeDef.parentOf(treeDef.parentOf(c)));
+		Assert.assertSame(rootAttributes, TreeQuery.toRoot(treeDef, c).get(3));
+	}
+
+	@Test
+	public void testParentError() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path parent = Files.createDirectories(root.resolve("parent"));
+		PathAttributes child = PathAttributes.read(Files.createDirectories(parent.resolve("child")));
+		Files.delete(child.getPath());
+		Files.delete(parent);
+		List<Throwable> errors = new ArrayList<>();
+		try {
+			TreeDef.forPathAttributes(errors::add).parentOf(child);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof NoSuchFileException);
+		}
+		Assert.assertEquals(1, errors.size());
+		Assert.assertTrue(errors.get(0) instanceof NoSuchFileException);
+	}
+
+	@Test
+	public void testReadBrokenLink() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path link = Files.createSymbolicLink(root.resolve("link"), root.resolve("missing"));
+		PathAttributes attributes = PathAttributes.read(link);
+		Assert.assertTrue(attributes.getAttributes().isSymbolicLink());
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void testReadMissing() throws IOException {
+		PathAttributes.read(folder.getRoot().toPath().resolve("missing"));
+	}
+}
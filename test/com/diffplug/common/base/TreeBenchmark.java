@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A repeatable benchmark which times the explicit-stack tree algorithms against the recursive
+ * implementations which they replaced, on a balanced tree.
+ * <p>
+ * Run it with {@code gradlew benchmark}, optionally passing the depth of the tree with {@code -Pdepth=N}.
+ */
+public class TreeBenchmark {
+	private static final int FAN_OUT = 4;
+	private static final int WARMUP = 100;
+	private static final int MEASURED = 101;
+
+	/** Prevents the JIT from discarding the results. */
+	static volatile Object sink;
+
+	public static void main(String[] args) {
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : 9;
+		TreeNode<Integer> root = balanced(depth);
+		TreeNode<Integer> copy = root.copy();
+		TreeDef<TreeNode<Integer>> treeDef = TreeNode.treeDef();
+		BiPredicate<TreeNode<Integer>, TreeNode<Integer>> sameContent = (a, b) -> a.getContent().equals(b.getContent());
+		Function<TreeNode<Integer>, String> toString = node -> node.getContent().toString();
+		System.out.println("balanced tree with fan-out " + FAN_OUT + " and depth " + depth + ": "
+				+ TreeStream.depthFirst(treeDef, root).count() + " nodes, median of " + MEASURED + " runs");
+
+		compare("copyLeavesIn",
+				() -> TreeQuery.copyLeavesIn(treeDef, root, TreeBenchmark::countNodes),
+				() -> copyLeavesInRecursive(treeDef, root, TreeBenchmark::countNodes));
+		compare("TreeNode.copy",
+				() -> TreeNode.copy(treeDef, root, TreeNode::getContent),
+				() -> copyRecursive(treeDef, root, TreeNode::getContent));
+		compare("isEqualBasedOn",
+				() -> TreeComparison.of(treeDef, root, treeDef, copy).isEqualBasedOn(sameContent),
+				() -> equalsRecursive(treeDef, root, treeDef, copy, sameContent));
+		compare("toString",
+				() -> TreeQuery.toString(treeDef, root, toString, " "),
+				() -> toStringRecursive(treeDef, root, toString, " "));
+	}
+
+	/**
+	 * Prints the median time of the iterative and recursive version of an algorithm.
+	 * <p>
+	 * The two versions take turns, so that neither one is favored by running when the heap and the JIT have settled.
+	 */
+	private static void compare(String name, Supplier<?> iterative, Supplier<?> recursive) {
+		for (int i = 0; i < WARMUP; ++i) {
+			sink = iterative.get();
+			sink = recursive.get();
+		}
+		long[] iterativeNanos = new long[MEASURED];
+		long[] recursiveNanos = new long[MEASURED];
+		for (int i = 0; i < MEASURED; ++i) {
+			iterativeNanos[i] = nanos(iterative);
+			recursiveNanos[i] = nanos(recursive);
+		}
+		System.out.println(String.format("%-16s iterative %8.2f ms   recursive %8.2f ms", name, medianMs(iterativeNanos), medianMs(recursiveNanos)));
+	}
+
+	private static long nanos(Supplier<?> algorithm) {
+		long start = System.nanoTime();
+		sink = algorithm.get();
+		return System.nanoTime() - start;
+	}
+
+	private static double medianMs(long[] nanos) {
+		Arrays.sort(nanos);
+		return nanos[nanos.length / 2] / 1e6;
+	}
+
+	/** Returns a balanced tree with the given depth, where the content of every node is its depth-first index. */
+	static TreeNode<Integer> balanced(int depth) {
+		int[] next = new int[1];
+		TreeNode<Integer> root = new TreeNode<>(null, next[0]++, FAN_OUT);
+		List<TreeNode<Integer>> level = Arrays.asList(root);
+		for (int d = 0; d < depth; ++d) {
+			List<TreeNode<Integer>> nextLevel = new ArrayList<>(level.size() * FAN_OUT);
+			for (TreeNode<Integer> parent : level) {
+				for (int i = 0; i < FAN_OUT; ++i) {
+					nextLevel.add(new TreeNode<>(parent, next[0]++, d == depth - 1 ? 0 : FAN_OUT));
+				}
+			}
+			level = nextLevel;
+		}
+		return root;
+	}
+
+	private static Integer countNodes(TreeNode<Integer> node, List<Integer> children) {
+		int count = 1;
+		for (Integer child : children) {
+			count += child;
+		}
+		return count;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// The recursive implementations which the iterative ones replaced //
+	/////////////////////////////////////////////////////////////////////
+	private static <T, CopyType> CopyType copyLeavesInRecursive(TreeDef<T> def, T root, BiFunction<T, List<CopyType>, CopyType> nodeMapper) {
+		List<CopyType> childrenMapped = def.childrenOf(root).stream().map(child -> {
+			return copyLeavesInRecursive(def, child, nodeMapper);
+		}).collect(Collectors.toList());
+		return nodeMapper.apply(root, childrenMapped);
+	}
+
+	private static <T, R> TreeNode<R> copyRecursive(TreeDef<T> treeDef, T root, Function<? super T, ? extends R> mapper) {
+		List<T> children = treeDef.childrenOf(root);
+		R mapped = mapper.apply(root);
+		TreeNode<R> copyRoot = new TreeNode<>(null, mapped, children.size());
+		copyRecurse(copyRoot, treeDef, root, children, mapper);
+		return copyRoot;
+	}
+
+	private static <T, R> void copyRecurse(TreeNode<R> copiedRoot, TreeDef<T> treeDef, T root, List<T> children, Function<? super T, ? extends R> mapper) {
+		for (T child : children) {
+			R mapped = mapper.apply(child);
+			List<T> grandChildren = treeDef.childrenOf(child);
+			copyRecurse(new TreeNode<>(copiedRoot, mapped, grandChildren.size()), treeDef, child, grandChildren, mapper);
+		}
+	}
+
+	private static <E, A> boolean equalsRecursive(TreeDef<E> expectedDef, E expectedRoot, TreeDef<A> actualDef, A actualRoot, BiPredicate<? super E, ? super A> compareFunc) {
+		if (!compareFunc.test(expectedRoot, actualRoot)) {
+			return false;
+		}
+		List<E> expectedChildren = expectedDef.childrenOf(expectedRoot);
+		List<A> actualChildren = actualDef.childrenOf(actualRoot);
+		if (expectedChildren.size() != actualChildren.size()) {
+			return false;
+		}
+		for (int i = 0; i < expectedChildren.size(); ++i) {
+			if (!equalsRecursive(expectedDef, expectedChildren.get(i), actualDef, actualChildren.get(i), compareFunc)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static <T> String toStringRecursive(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String indent) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(toString.apply(root));
+		builder.append("\n");
+		toStringHelper(treeDef, root, toString, indent, builder, indent);
+		return builder.toString();
+	}
+
+	private static <T> void toStringHelper(TreeDef<T> treeDef, T root, Function<? super T, String> toString, String indent, StringBuilder builder, String prefix) {
+		for (T child : treeDef.childrenOf(root)) {
+			builder.append(prefix);
+			builder.append(toString.apply(child));
+			builder.append("\n");
+			toStringHelper(treeDef, child, toString, indent, builder, prefix + indent);
+		}
+	}
+}
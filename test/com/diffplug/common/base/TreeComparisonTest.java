@@ -15,9 +15,22 @@
  */
 package com.diffplug.common.base;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Assert;
 import org.junit.ComparisonFailure;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class TreeComparisonTest {
 	@Test
@@ -50,6 +63,191 @@ public class TreeComparisonTest {
 		}
 	}
 
+	@Test
+	public void testDeepTree() {
+		TreeNode<Integer> deep = TreeNode.copy(TreeQueryTest.deepChain(100_000), 0);
+		TreeNode<Integer> copy = deep.copy();
+		TreeComparison.of(deep, copy).assertEqual();
+		copy.findByContent(99_999).setContent(-1);
+		Assert.assertFalse(TreeComparison.of(deep, copy).isEqual());
+		TreeComparison.HashCache<TreeNode<Integer>> hashes = TreeComparison.hashCache(TreeNode.treeDef(), TreeNode::getContent);
+		Assert.assertFalse(TreeComparison.of(TreeNode.treeDef(), deep, TreeNode.treeDef(), copy).isEqualHashedBy(hashes, hashes));
+		// sorting a deep tree is fine too
+		deep.sortChildrenByContent(Comparator.naturalOrder());
+	}
+
+	@Test
+	public void testHashCache() {
+		TreeNode<String> copy = root.copy();
+		AtomicInteger mapperCalls = new AtomicInteger();
+		TreeComparison.HashCache<TreeNode<String>> expectedHashes = TreeComparison.hashCache(TreeNode.treeDef(), TreeNode::getContent);
+		TreeComparison.HashCache<TreeNode<String>> actualHashes = TreeComparison.hashCache(TreeNode.treeDef(), node -> {
+			mapperCalls.incrementAndGet();
+			return node.getContent();
+		});
+		TreeComparison<TreeNode<String>, TreeNode<String>> comparison = TreeComparison.of(TreeNode.treeDef(), root, TreeNode.treeDef(), copy);
+		Assert.assertTrue(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+
+		// after an edit, only the path to the root is rehashed, and the mismatch is found at the root
+		TreeNode<String> vector = copy.findByContent("Vector.java");
+		vector.setContent("Vec.java");
+		actualHashes.invalidate(vector);
+		mapperCalls.set(0);
+		Assert.assertFalse(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+		Assert.assertEquals(5, mapperCalls.get());
+
+		vector.setContent("Vector.java");
+		actualHashes.invalidate(vector);
+		Assert.assertTrue(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+
+		// a tree compared to itself doesn't look past the root
+		mapperCalls.set(0);
+		Assert.assertTrue(TreeComparison.of(TreeNode.treeDef(), copy, TreeNode.treeDef(), copy).isEqualHashedBy(actualHashes, actualHashes));
+		Assert.assertEquals(0, mapperCalls.get());
+	}
+
+	@Test
+	public void testHashCacheComplexity() {
+		AtomicInteger childrenCalls = new AtomicInteger();
+		TreeDef.Parented<TreeNode<Integer>> treeDef = TreeDef.Parented.of(node -> {
+			childrenCalls.incrementAndGet();
+			return node.getChildren();
+		}, TreeNode::getParent);
+		// fan-out 4 and 5 levels
+		TreeNode<Integer> expected = TreeBenchmark.balanced(4);
+		TreeNode<Integer> actual = expected.copy();
+		int size = (int) TreeStream.depthFirst(treeDef, expected).count();
+		TreeComparison.HashCache<TreeNode<Integer>> expectedHashes = TreeComparison.hashCache(treeDef, TreeNode::getContent);
+		TreeComparison.HashCache<TreeNode<Integer>> actualHashes = TreeComparison.hashCache(treeDef, TreeNode::getContent);
+		TreeComparison<TreeNode<Integer>, TreeNode<Integer>> comparison = TreeComparison.of(treeDef, expected, treeDef, actual);
+
+		// hashing lists the children of every node once, and equal trees are then compared node-by-node
+		childrenCalls.set(0);
+		Assert.assertTrue(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+		Assert.assertEquals(4 * size, childrenCalls.get());
+		childrenCalls.set(0);
+		Assert.assertTrue(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+		Assert.assertEquals(2 * size, childrenCalls.get());
+
+		// after an edit, only the five invalidated nodes are rehashed, and the mismatch is found at the root
+		TreeNode<Integer> leaf = actual.findByContent(size - 1);
+		leaf.setContent(-1);
+		actualHashes.invalidate(leaf);
+		childrenCalls.set(0);
+		Assert.assertFalse(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+		Assert.assertEquals(5, childrenCalls.get());
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testHashCacheForPath() throws IOException {
+		// forPath creates new Path objects every time, so the cache must be keyed by equals
+		Path expected = Files.createDirectories(folder.getRoot().toPath().resolve("x/a/sub"));
+		Path actual = Files.createDirectories(folder.getRoot().toPath().resolve("y/a/sub"));
+		Files.createFile(expected.resolve("file"));
+		TreeDef.Parented<Path> treeDef = TreeDef.forPath(Errors.rethrow());
+		AtomicInteger mapperCalls = new AtomicInteger();
+		TreeComparison.HashCache<Path> expectedHashes = TreeComparison.hashCache(treeDef, Path::getFileName);
+		TreeComparison.HashCache<Path> actualHashes = TreeComparison.hashCache(treeDef, path -> {
+			mapperCalls.incrementAndGet();
+			return path.getFileName();
+		});
+		TreeComparison<Path, Path> comparison = TreeComparison.of(treeDef, expected.getParent(), treeDef, actual.getParent());
+		Assert.assertFalse(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+
+		// an unchanged tree is found in the cache, even though every Path is a new object
+		mapperCalls.set(0);
+		actualHashes.hashOf(Paths.get(actual.getParent().toString()));
+		Assert.assertEquals(0, mapperCalls.get());
+
+		// invalidating a new but equal Path discards the cached ancestors too, so the trees are now equal
+		Files.createFile(actual.resolve("file"));
+		actualHashes.invalidate(Paths.get(actual.toString()));
+		Assert.assertTrue(comparison.isEqualHashedBy(expectedHashes, actualHashes));
+	}
+
+	@Test
+	public void testHashCacheForSnapshot() {
+		// a snapshot's Integer handles above 127 are new objects every time
+		TreeSnapshot<Integer> snapshot = TreeSnapshot.of(TreeQueryTest.deepChain(1_000), 0);
+		AtomicInteger mapperCalls = new AtomicInteger();
+		TreeComparison.HashCache<Integer> hashes = TreeComparison.hashCache(snapshot.treeDef(), node -> {
+			mapperCalls.incrementAndGet();
+			return snapshot.contentOf(node);
+		});
+		hashes.hashOf(snapshot.root());
+		Assert.assertEquals(1_000, mapperCalls.get());
+		// a handle which was hashed as part of the root's subtree is found, although it's a different object
+		hashes.hashOf(snapshot.treeDef().childrenOf(998).get(0));
+		Assert.assertEquals(1_000, mapperCalls.get());
+	}
+
+	@Test
+	public void testHashCacheCollision() {
+		// "Aa" and "BB" have the same hashCode, so equal hashes must still be checked
+		Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+		TreeNode<String> expected = TreeNode.createTestData("root", " Aa");
+		TreeNode<String> actual = TreeNode.createTestData("root", " BB");
+		TreeComparison.HashCache<TreeNode<String>> hashes = TreeComparison.hashCache(TreeNode.treeDef(), TreeNode::getContent);
+		Assert.assertEquals(hashes.hashOf(expected), hashes.hashOf(actual));
+		Assert.assertFalse(TreeComparison.of(TreeNode.treeDef(), expected, TreeNode.treeDef(), actual).isEqualHashedBy(hashes, hashes));
+	}
+
+	@Test
+	public void testFindMismatch() {
+		TreeNode<String> copy = root.copy();
+		TreeComparison<TreeNode<String>, TreeNode<String>> comparison = TreeComparison.of(TreeNode.treeDef(), root, TreeNode.treeDef(), copy);
+		Assert.assertFalse(comparison.findMismatchBasedOn(this::sameContent).isPresent());
+
+		copy.findByContent("QuatRot.java").setContent("Quaternion.java");
+		Optional<TreeComparison.Mismatch<TreeNode<String>, TreeNode<String>>> mismatch = comparison.findMismatchBasedOn(this::sameContent);
+		Assert.assertEquals(Arrays.asList(0, 0, 0, 2), mismatch.get().getPath());
+		Assert.assertEquals("Quaternion.java", mismatch.get().getActual().getContent());
+
+		// a different number of children is a mismatch at the parent
+		copy.findByContent("Quaternion.java").setContent("QuatRot.java");
+		copy.findByContent("Constant.xml").removeFromParent();
+		mismatch = comparison.findMismatchBasedOn(this::sameContent);
+		Assert.assertEquals(Arrays.asList(0, 0, 1, 0), mismatch.get().getPath());
+		Assert.assertEquals("generic", mismatch.get().getExpected().getContent());
+
+		Assert.assertEquals(Collections.emptyList(), TreeComparison.of(TreeNode.treeDef(), root, TreeNode.treeDef(), TreeNode.createTestData("other"))
+				.findMismatchBasedOn(this::sameContent).get().getPath());
+	}
+
+	@Test
+	public void testFindMismatchParallel() {
+		TreeNode<Integer> wide = TreeNode.copy(TreeDef.of(i -> i < 2 ? Collections.nCopies(100, i + 1) : Collections.<Integer> emptyList()), 0);
+		TreeNode<Integer> copy = wide.copy();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			TreeComparison<TreeNode<Integer>, TreeNode<Integer>> comparison = TreeComparison.of(TreeNode.treeDef(), wide, TreeNode.treeDef(), copy);
+			for (int forkDepth = 0; forkDepth < 4; ++forkDepth) {
+				Assert.assertTrue(comparison.isEqualBasedOnParallel(this::sameContent, pool, forkDepth));
+			}
+			copy.getChildren().get(37).getChildren().get(42).setContent(-1);
+			for (int forkDepth = 0; forkDepth < 4; ++forkDepth) {
+				Assert.assertEquals(Arrays.asList(37, 42), comparison.findMismatchBasedOnParallel(this::sameContent, pool, forkDepth).get().getPath());
+			}
+			// once a mismatch is found, the outstanding work is cancelled
+			copy.getChildren().get(0).setContent(-1);
+			AtomicInteger compareCalls = new AtomicInteger();
+			Assert.assertFalse(comparison.isEqualBasedOnParallel((expected, actual) -> {
+				compareCalls.incrementAndGet();
+				return sameContent(expected, actual);
+			}, pool, 1));
+			Assert.assertTrue(compareCalls.get() < 101 * 100 / 2);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private boolean sameContent(TreeNode<?> expected, TreeNode<?> actual) {
+		return expected.getContent().equals(actual.getContent());
+	}
+
 	// @formatter:off
 	private TreeNode<String> root = TreeNode.createTestData(
 			"root",
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TreeDefTest {
+	@Test
+	public void testCached() {
+		AtomicInteger childCalls = new AtomicInteger();
+		AtomicInteger parentCalls = new AtomicInteger();
+		TreeDef.Parented<TreeNode<String>> counting = TreeDef.Parented.of(node -> {
+			childCalls.incrementAndGet();
+			return node.getChildren();
+		}, node -> {
+			parentCalls.incrementAndGet();
+			return node.getParent();
+		});
+		TreeDef.Parented.Cached<TreeNode<String>> cached = counting.cached(100);
+
+		TreeNode<String> c = root.findByContent("C");
+		for (int i = 0; i < 5; ++i) {
+			Assert.assertEquals("root/A/B/C", TreeQuery.path(cached, c, TreeNode::getContent));
+			Assert.assertEquals(c, TreeQuery.findByPath(cached, root, TreeNode::getContent, Arrays.asList("A", "B", "C"), Function.identity()).get());
+		}
+		// each node was only queried once
+		Assert.assertEquals(3, childCalls.get());
+		Assert.assertEquals(4, parentCalls.get());
+		Assert.assertEquals(7, cached.missCount());
+		Assert.assertEquals(5 * 7 - 7, cached.hitCount());
+
+		// the cached lists can't be modified
+		try {
+			cached.childrenOf(root).clear();
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {}
+
+		// invalidating a node causes it to be queried again
+		cached.invalidate(c);
+		Assert.assertEquals(root.findByContent("B"), cached.parentOf(c));
+		Assert.assertEquals(5, parentCalls.get());
+		cached.invalidateAll();
+		cached.childrenOf(root);
+		Assert.assertEquals(4, childCalls.get());
+	}
+
+	@Test
+	public void testCachedEviction() {
+		AtomicInteger childCalls = new AtomicInteger();
+		TreeDef.Cached<TreeNode<String>> cached = TreeDef.<TreeNode<String>> of(node -> {
+			childCalls.incrementAndGet();
+			return node.getChildren();
+		}).cached(2);
+		List<TreeNode<String>> nodes = Arrays.asList(root, root.findByContent("A"), root.findByContent("B"));
+		// the cache is too small for all three nodes
+		for (int i = 0; i < 2; ++i) {
+			nodes.forEach(cached::childrenOf);
+		}
+		Assert.assertEquals(6, childCalls.get());
+		// but big enough for two (root is a miss, and evicts A, which is then a miss)
+		for (int i = 0; i < 3; ++i) {
+			cached.childrenOf(root);
+			cached.childrenOf(nodes.get(1));
+		}
+		Assert.assertEquals(8, childCalls.get());
+	}
+
+	// @formatter:off
+	private TreeNode<String> root = TreeNode.createTestData(
+			"root",
+			" A",
+			"  B",
+			"   C",
+			" 1",
+			"  2");
+	// @formatter:on
+}
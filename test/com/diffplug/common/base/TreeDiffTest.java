@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TreeDiffTest {
+	@Test
+	public void testEqual() {
+		assertEdits(root, root.copy());
+		assertEdits(root, root);
+	}
+
+	@Test
+	public void testInsertDeleteUpdate() {
+		TreeNode<String> actual = root.copy();
+		actual.findByContent("Vector.java:1").setContent("Vector.java:2");
+		actual.findByContent("model").removeFromParent();
+		new TreeNode<>(actual.findByContent("math"), "Scalar.java:1");
+		assertEdits(root, actual,
+				"DELETE model",
+				"UPDATE Vector.java:1 -> Vector.java:2",
+				"INSERT Scalar.java:1 at 3");
+	}
+
+	@Test
+	public void testMove() {
+		TreeNode<String> actual = root.copy();
+		TreeNode<String> math = actual.findByContent("math");
+		// move Array.java from the front to the back
+		TreeNode<String> array = math.findByContent("Array.java:1");
+		array.removeFromParent();
+		new TreeNode<>(math, array.getContent());
+		assertEdits(root, actual, "MOVE Array.java:1 to 2");
+		// a move to a different parent is a delete and an insert
+		TreeNode<String> model = actual.findByContent("model");
+		math.findByContent("Matrix.java:1").removeFromParent();
+		new TreeNode<>(model, "Matrix.java:1");
+		assertEdits(root, actual,
+				"DELETE Matrix.java:1",
+				"MOVE Vector.java:1 to 0",
+				"INSERT Matrix.java:1 at 1");
+	}
+
+	@Test
+	public void testDuplicateKeys() {
+		TreeNode<String> expected = TreeNode.createTestData("root", " a", " b", " a");
+		TreeNode<String> actual = TreeNode.createTestData("root", " a", " a", " c");
+		assertEdits(expected, actual,
+				"DELETE b",
+				"INSERT c at 2");
+	}
+
+	@Test
+	public void testLongestIncreasingSubsequence() {
+		assertLis(new int[]{0, 1, 2}, true, true, true);
+		assertLis(new int[]{2, 0, 1}, false, true, true);
+		assertLis(new int[]{1, -1, 0, 2}, false, false, true, true);
+		assertLis(new int[]{3, 4, 0, 1, 2}, false, false, true, true, true);
+		assertLis(new int[0]);
+	}
+
+	private static void assertLis(int[] values, boolean... expected) {
+		Assert.assertTrue(Arrays.equals(expected, TreeDiff.longestIncreasingSubsequence(values)));
+	}
+
+	@Test
+	public void testLazy() {
+		AtomicInteger childCalls = new AtomicInteger();
+		TreeDef<Integer> counting = TreeDef.of(node -> {
+			childCalls.incrementAndGet();
+			return TreeQueryTest.deepChain(100_000).childrenOf(node);
+		});
+		TreeDiff.Edit<Integer, Integer> first = TreeDiff.of(counting, 0, TreeQueryTest.deepChain(100_000), -1)
+				.editsKeyedBy(Function.identity(), Function.identity(), Integer::equals)
+				.findFirst().get();
+		Assert.assertEquals("UPDATE 0 -> -1", first.toString());
+		Assert.assertEquals(0, childCalls.get());
+	}
+
+	@Test
+	public void testDeepTree() {
+		TreeNode<Integer> deep = TreeNode.copy(TreeQueryTest.deepChain(100_000), 0);
+		TreeNode<Integer> copy = deep.copy();
+		copy.findByContent(99_999).setContent(-1);
+		List<String> edits = TreeDiff.of(deep, copy).editsKeyedBy(TreeNode::getContent, TreeNode::getContent)
+				.map(Object::toString)
+				.collect(Collectors.toList());
+		Assert.assertEquals(Arrays.asList("DELETE TreeNode[99999]", "INSERT TreeNode[-1] at 0"), edits);
+	}
+
+	/** Diffs the trees keyed on the part of their content before the colon, and asserts the edits. */
+	private static void assertEdits(TreeNode<String> expected, TreeNode<String> actual, String... edits) {
+		Function<TreeNode<String>, String> key = node -> node.getContent().split(":")[0];
+		List<String> actualEdits = TreeDiff.of(expected, actual)
+				.editsKeyedBy(key, key, (e, a) -> e.getContent().equals(a.getContent()))
+				.map(edit -> edit.toString().replace("TreeNode[", "").replace("]", ""))
+				.collect(Collectors.toList());
+		Assert.assertEquals(Arrays.asList(edits), actualEdits);
+	}
+
+	// @formatter:off
+	private TreeNode<String> root = TreeNode.createTestData(
+			"root",
+			" src",
+			"  org",
+			"   math",
+			"    Array.java:1",
+			"    Matrix.java:1",
+			"    Vector.java:1",
+			"   model",
+			"    Constant.java:1"
+			);
+	// @formatter:on
+}
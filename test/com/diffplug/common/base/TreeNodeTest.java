@@ -0,0 +1,472 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+public class TreeNodeTest {
+	@Test
+	public void testContentIndex() {
+		TreeNode<String> root = createRoot();
+		List<String> contents = Arrays.asList("root", "src", "test", "Main.java", "MainTest.java", "dup", "nope");
+		root.enableContentIndex();
+		Assert.assertTrue(root.findByContent("Main.java").isContentIndexEnabled());
+		// the index must find exactly what the breadth-first scan finds
+		TreeNode<String> unindexed = createRoot();
+		for (String content : contents) {
+			assertSameFind(unindexed, root, content);
+			assertSameFind(unindexed.findByContent("src"), root.findByContent("src"), content);
+			assertSameFind(unindexed.findByContent("test"), root.findByContent("test"), content);
+		}
+		// nodes constructed after the index is enabled are indexed
+		TreeNode<String> added = new TreeNode<>(root.findByContent("test"), "added");
+		Assert.assertSame(added, root.findByContent("added"));
+		Assert.assertTrue(added.isContentIndexEnabled());
+		// setContent moves the node within the index
+		added.setContent("renamed");
+		Assert.assertSame(added, root.findByContent("renamed"));
+		assertNotFound(root, "added");
+		// removeFromParent removes the entire subtree from the index
+		TreeNode<String> src = root.findByContent("src");
+		src.removeFromParent();
+		assertNotFound(root, "Main.java");
+		Assert.assertSame(root.findByContent("test").findByContent("dup"), root.findByContent("dup"));
+		Assert.assertFalse(src.isContentIndexEnabled());
+		Assert.assertEquals("Main.java", src.findByContent("Main.java").getContent());
+		// and it can be turned off
+		root.findByContent("dup").disableContentIndex();
+		Assert.assertFalse(root.isContentIndexEnabled());
+		Assert.assertSame(added, root.findByContent("renamed"));
+	}
+
+	@Test
+	public void testMoveTo() {
+		TreeNode<String> root = createRoot();
+		TreeNode<String> src = root.findByContent("src");
+		TreeNode<String> test = root.findByContent("test");
+		TreeNode<String> main = root.findByContent("Main.java");
+		assertIndices(root);
+		Assert.assertEquals(-1, root.getIndexInParent());
+
+		// to the end of another parent
+		main.moveTo(test);
+		Assert.assertEquals(test, main.getParent());
+		Assert.assertEquals(Arrays.asList("MainTest.java", "dup", "dup", "Main.java"), contents(test));
+		Assert.assertEquals(Arrays.asList("deeper"), contents(src));
+		assertIndices(root);
+
+		// to a given index, including within the same parent
+		main.moveTo(test, 0);
+		Assert.assertEquals(Arrays.asList("Main.java", "MainTest.java", "dup", "dup"), contents(test));
+		main.moveTo(test, 2);
+		Assert.assertEquals(Arrays.asList("MainTest.java", "dup", "Main.java", "dup"), contents(test));
+		main.moveTo(test);
+		Assert.assertEquals(Arrays.asList("MainTest.java", "dup", "dup", "Main.java"), contents(test));
+		assertIndices(root);
+
+		// can't create a cycle, or go out of bounds
+		assertThrows(IllegalArgumentException.class, () -> src.moveTo(src.findByContent("deeper")));
+		assertThrows(IllegalArgumentException.class, () -> src.moveTo(src));
+		assertThrows(IndexOutOfBoundsException.class, () -> main.moveTo(test, 4));
+		assertThrows(IndexOutOfBoundsException.class, () -> main.moveTo(src, 2));
+		Assert.assertEquals(Arrays.asList("MainTest.java", "dup", "dup", "Main.java"), contents(test));
+
+		// a detached node can be attached again
+		main.removeFromParent();
+		Assert.assertEquals(-1, main.getIndexInParent());
+		main.moveTo(src, 0);
+		Assert.assertEquals(Arrays.asList("Main.java", "deeper"), contents(src));
+		assertIndices(root);
+	}
+
+	@Test
+	public void testMoveToWithContentIndex() {
+		TreeNode<String> indexed = createRoot();
+		indexed.enableContentIndex();
+		TreeNode<String> other = createRoot();
+		// moving into an indexed tree adds the subtree to its index
+		TreeNode<String> otherSrc = other.findByContent("src");
+		otherSrc.setContent("otherSrc");
+		otherSrc.moveTo(indexed.findByContent("test"));
+		Assert.assertSame(otherSrc, indexed.findByContent("otherSrc"));
+		Assert.assertTrue(otherSrc.findByContent("deeper").isContentIndexEnabled());
+		// and moving out removes it
+		otherSrc.moveTo(other);
+		assertNotFound(indexed, "otherSrc");
+		Assert.assertFalse(otherSrc.findByContent("deeper").isContentIndexEnabled());
+		// moving within an indexed tree changes which node a breadth-first search finds first
+		TreeNode<String> deepDup = indexed.findByContent("deeper").findByContent("dup");
+		deepDup.moveTo(indexed, 0);
+		Assert.assertSame(deepDup, indexed.findByContent("dup"));
+		assertSameFind(createRootWith(tree -> tree.findByContent("deeper").findByContent("dup").moveTo(tree, 0)), indexed, "dup");
+	}
+
+	@Test
+	public void testRemoveChildrenIf() {
+		TreeNode<String> root = createRoot();
+		root.enableContentIndex();
+		TreeNode<String> test = root.findByContent("test");
+		List<TreeNode<String>> dups = new ArrayList<>(test.getChildren().subList(1, 3));
+		Assert.assertFalse(test.removeChildrenIf(node -> node.getContent().equals("nope")));
+		Assert.assertTrue(test.removeChildrenIf(node -> node.getContent().equals("dup")));
+		Assert.assertEquals(Arrays.asList("MainTest.java"), contents(test));
+		for (TreeNode<String> dup : dups) {
+			Assert.assertNull(dup.getParent());
+			Assert.assertFalse(dup.isContentIndexEnabled());
+		}
+		// the deeper dup is all that's left in the index
+		Assert.assertSame(root.findByContent("deeper").getChildren().get(0), root.findByContent("dup"));
+		assertIndices(root);
+
+		// removing many children from a wide node is a single pass
+		TreeNode<String> wide = new TreeNode<>(null, "wide");
+		for (int i = 0; i < 100_000; ++i) {
+			new TreeNode<>(wide, Integer.toString(i));
+		}
+		wide.removeChildrenIf(node -> node.getIndexInParent() % 2 == 0);
+		Assert.assertEquals(50_000, wide.getChildren().size());
+		Assert.assertEquals("99999", wide.getChildren().get(49_999).getContent());
+		assertIndices(wide);
+	}
+
+	@Test
+	public void testSortParallel() {
+		// a wide random tree, sorted sequentially and in parallel
+		Random random = new Random(0);
+		TreeNode<Integer> tree = new TreeNode<>(null, 0);
+		List<TreeNode<Integer>> nodes = new ArrayList<>(Arrays.asList(tree));
+		for (int i = 1; i < 20_000; ++i) {
+			nodes.add(new TreeNode<>(nodes.get(random.nextInt(nodes.size())), random.nextInt(1000)));
+		}
+		TreeNode<Integer> sequential = tree.copy();
+		sequential.sortChildrenByContent(Comparator.naturalOrder());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int forkDepth = 0; forkDepth < 4; ++forkDepth) {
+				TreeNode<Integer> parallel = tree.copy();
+				parallel.sortChildrenByContent(Comparator.naturalOrder(), pool, forkDepth);
+				TreeComparison.of(sequential, parallel).assertEqual();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		TreeComparison.of(sequential, sequential.copy()).assertEqual();
+
+		// lists which are already sorted are only checked, not sorted again
+		AtomicInteger comparisons = new AtomicInteger();
+		sequential.sortChildrenByContent((a, b) -> {
+			comparisons.incrementAndGet();
+			return a.compareTo(b);
+		});
+		long expected = TreeStream.depthFirst(TreeNode.treeDef(), sequential).mapToInt(node -> Math.max(0, node.getChildren().size() - 1)).sum();
+		Assert.assertEquals(expected, comparisons.get());
+	}
+
+	@Test
+	public void testKeepSorted() {
+		TreeNode<String> root = TreeNode.createTestData("root", " c", " a", "  z", "  y", " b");
+		root.keepChildrenSortedByContent(Comparator.naturalOrder());
+		Assert.assertTrue(root.isKeptSorted());
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), contents(root));
+		Assert.assertEquals(Arrays.asList("y", "z"), contents(root.findByContent("a")));
+
+		// new children are inserted in order, after any equal children
+		TreeNode<String> bb = new TreeNode<>(root, "bb");
+		TreeNode<String> secondB = new TreeNode<>(root, "b");
+		new TreeNode<>(root, "0");
+		Assert.assertEquals(Arrays.asList("0", "a", "b", "b", "bb", "c"), contents(root));
+		Assert.assertSame(secondB, root.getChildren().get(3));
+		assertIndices(root);
+
+		// changing the content moves the node
+		bb.setContent("d");
+		Assert.assertEquals(Arrays.asList("0", "a", "b", "b", "c", "d"), contents(root));
+		secondB.setContent("b");
+		Assert.assertSame(secondB, root.getChildren().get(3));
+		assertIndices(root);
+
+		// moves go to the sorted position, and a subtree which arrives from another tree is sorted
+		TreeNode<String> other = TreeNode.createTestData("x", " 3", " 1", " 2");
+		other.moveTo(root.findByContent("a"));
+		Assert.assertEquals(Arrays.asList("x", "y", "z"), contents(root.findByContent("a")));
+		Assert.assertEquals(Arrays.asList("1", "2", "3"), contents(other));
+		Assert.assertTrue(other.isKeptSorted());
+		try {
+			other.moveTo(root, 0);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		other.moveTo(root);
+		Assert.assertEquals(Arrays.asList("0", "a", "b", "b", "c", "d", "x"), contents(root));
+		assertIndices(root);
+
+		// works together with the content index
+		root.enableContentIndex();
+		root.findByContent("x").setContent("A");
+		Assert.assertEquals(Arrays.asList("0", "A", "a", "b", "b", "c", "d"), contents(root));
+		Assert.assertSame(other, root.findByContent("A"));
+		root.stopKeepingChildrenSorted();
+		Assert.assertFalse(root.isKeptSorted());
+		Assert.assertTrue(root.isContentIndexEnabled());
+		new TreeNode<>(root, "1");
+		Assert.assertEquals(Arrays.asList("0", "A", "a", "b", "b", "c", "d", "1"), contents(root));
+		root.disableContentIndex();
+		Assert.assertFalse(root.isContentIndexEnabled());
+
+		// a removed subtree is no longer kept sorted
+		root.keepChildrenSortedByContent(Comparator.naturalOrder());
+		other.removeFromParent();
+		Assert.assertFalse(other.isKeptSorted());
+		new TreeNode<>(other, "0");
+		Assert.assertEquals(Arrays.asList("1", "2", "3", "0"), contents(other));
+	}
+
+	@Test
+	public void testSortKeptSorted() {
+		TreeNode<String> root = TreeNode.createTestData("root", " c", " a", "  z", "  y", " b");
+		root.keepChildrenSortedByContent(Comparator.naturalOrder());
+		// sorting by another order would break the kept order, so it throws
+		TreeNode<String> a = root.findByContent("a");
+		assertThrows(IllegalStateException.class, () -> root.sortChildrenByContent(Comparator.reverseOrder()));
+		assertThrows(IllegalStateException.class, () -> a.sortChildrenByContent(Comparator.reverseOrder()));
+		assertThrows(IllegalStateException.class, () -> root.sortChildrenByContent(Comparator.reverseOrder(), ForkJoinPool.commonPool(), 2));
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), contents(root));
+		Assert.assertEquals(Arrays.asList("y", "z"), contents(a));
+
+		// the order can still be changed by keeping it sorted in another order
+		root.keepChildrenSortedByContent(Comparator.reverseOrder());
+		Assert.assertEquals(Arrays.asList("c", "b", "a"), contents(root));
+		Assert.assertEquals(Arrays.asList("z", "y"), contents(a));
+		new TreeNode<>(root, "bb");
+		Assert.assertEquals(Arrays.asList("c", "bb", "b", "a"), contents(root));
+		assertIndices(root);
+
+		// once it stops being kept sorted, it can be sorted freely
+		root.stopKeepingChildrenSorted();
+		root.sortChildrenByContent(Comparator.naturalOrder());
+		Assert.assertEquals(Arrays.asList("a", "b", "bb", "c"), contents(root));
+	}
+
+	@Test
+	public void testChildrenAreReadOnly() {
+		TreeNode<String> root = createRoot();
+		List<TreeNode<String>> children = root.getChildren();
+		Assert.assertSame(children, root.getChildren());
+		assertThrows(UnsupportedOperationException.class, () -> children.add(new TreeNode<>(null, "x")));
+		assertThrows(UnsupportedOperationException.class, () -> children.remove(0));
+		assertThrows(UnsupportedOperationException.class, () -> children.set(0, children.get(1)));
+		assertThrows(UnsupportedOperationException.class, () -> children.sort(Comparator.comparing(TreeNode::getContent)));
+		assertThrows(IndexOutOfBoundsException.class, () -> children.get(children.size()));
+
+		// it's a view which reflects later changes
+		new TreeNode<>(root, "x");
+		Assert.assertEquals("x", children.get(children.size() - 1).getContent());
+		assertThrows(ConcurrentModificationException.class, () -> children.forEach(child -> new TreeNode<>(root, "y")));
+
+		// trimming doesn't change anything but the capacity
+		String before = root.toStringDeep();
+		root.trimChildrenToSize();
+		Assert.assertEquals(before, root.toStringDeep());
+		new TreeNode<>(root.findByContent("x"), "z");
+		Assert.assertEquals("root/x/z", root.findByContent("z").getPath());
+		assertIndices(root);
+	}
+
+	@Test
+	public void testMemoryFootprint() {
+		// the same random tree, with null content so that only the tree structure is measured
+		Random random = new Random(0);
+		int size = 10_000;
+		List<TreeNode<Object>> compact = new ArrayList<>(size);
+		List<ArrayListNode> legacy = new ArrayList<>(size);
+		compact.add(new TreeNode<>(null, null));
+		legacy.add(new ArrayListNode(null));
+		for (int i = 1; i < size; ++i) {
+			int parent = random.nextInt(i);
+			compact.add(new TreeNode<>(compact.get(parent), null));
+			legacy.add(new ArrayListNode(legacy.get(parent)));
+		}
+		double compactBytesPerNode = GraphLayout.parseInstance(compact.get(0)).totalSize() / (double) size;
+		double legacyBytesPerNode = GraphLayout.parseInstance(legacy.get(0)).totalSize() / (double) size;
+		Assert.assertTrue(compactBytesPerNode + " vs " + legacyBytesPerNode, compactBytesPerNode < legacyBytesPerNode);
+
+		compact.get(0).trimChildrenToSize();
+		double trimmedBytesPerNode = GraphLayout.parseInstance(compact.get(0)).totalSize() / (double) size;
+		Assert.assertTrue(trimmedBytesPerNode + " vs " + compactBytesPerNode, trimmedBytesPerNode <= compactBytesPerNode);
+	}
+
+	@Test
+	public void testFromPreOrder() {
+		TreeNode<String> expected = createRoot();
+		List<TreeNode<String>> nodes = TreeStream.depthFirst(TreeNode.treeDef(), expected).collect(Collectors.toList());
+		int[] depths = nodes.stream().mapToInt(node -> TreeQuery.toRoot(TreeNode.treeDef(), node).size() - 1).toArray();
+		List<String> contents = nodes.stream().map(TreeNode::getContent).collect(Collectors.toList());
+
+		TreeNode<String> fromArrays = TreeNode.fromPreOrder(depths, contents);
+		Assert.assertEquals(expected.toStringDeep(), fromArrays.toStringDeep());
+		assertIndices(fromArrays);
+		TreeNode<String> fromStream = TreeNode.fromPreOrder(nodes.stream(), node -> TreeQuery.toRoot(TreeNode.treeDef(), node).size() - 1, TreeNode::getContent);
+		Assert.assertEquals(expected.toStringDeep(), fromStream.toStringDeep());
+
+		// the tree can still be modified afterwards
+		new TreeNode<>(fromArrays.findByContent("deeper"), "new");
+		Assert.assertEquals("root/src/deeper/new", fromArrays.findByContent("new").getPath());
+
+		assertThrows(IllegalArgumentException.class, () -> TreeNode.fromPreOrder(new int[]{0, 1}, Arrays.asList("root")));
+		assertThrows(IllegalArgumentException.class, () -> TreeNode.fromPreOrder(new int[]{1}, Arrays.asList("root")));
+		assertThrows(IllegalArgumentException.class, () -> TreeNode.fromPreOrder(new int[]{0, 0}, Arrays.asList("root", "root2")));
+		assertThrows(IllegalArgumentException.class, () -> TreeNode.fromPreOrder(new int[]{0, 2}, Arrays.asList("root", "deep")));
+	}
+
+	@Test
+	public void testFromParentIds() {
+		// children which come before their parent, and siblings which must keep their order
+		String[][] rows = {
+				{"3", "2", "c"},
+				{"1", "0", "a"},
+				{"2", "0", "b"},
+				{"0", null, "root"},
+				{"4", "1", "d"},
+				{"5", "0", "e"},
+		};
+		TreeNode<String> root = TreeNode.fromParentIds(Arrays.stream(rows), row -> row[0], row -> row[1], row -> row[2]);
+		Assert.assertEquals(StringPrinter.buildStringFromLines(
+				"root",
+				" a",
+				"  d",
+				" b",
+				"  c",
+				" e"), root.toStringDeep());
+		assertIndices(root);
+
+		assertThrows(IllegalArgumentException.class, () -> fromRows(new String[]{"0", null, "root"}, new String[]{"0", "0", "dup"}));
+		assertThrows(IllegalArgumentException.class, () -> fromRows(new String[]{"0", null, "root"}, new String[]{"1", "9", "orphan"}));
+		assertThrows(IllegalArgumentException.class, () -> fromRows(new String[]{"0", null, "root"}, new String[]{"1", null, "root2"}));
+		assertThrows(IllegalArgumentException.class, () -> fromRows(new String[]{"0", "1", "a"}, new String[]{"1", "0", "b"}));
+		assertThrows(IllegalArgumentException.class, () -> fromRows(new String[]{"0", null, "root"}, new String[]{"1", "2", "a"}, new String[]{"2", "1", "b"}));
+	}
+
+	private static TreeNode<String> fromRows(String[]... rows) {
+		return TreeNode.fromParentIds(Arrays.stream(rows), row -> row[0], row -> row[1], row -> row[2]);
+	}
+
+	/** The layout of TreeNode when every node with children had an ArrayList, for comparison in {@link #testMemoryFootprint()}. */
+	@SuppressWarnings("unused")
+	private static class ArrayListNode {
+		private ArrayListNode parent;
+		private Object content;
+		private List<ArrayListNode> children = Collections.emptyList();
+		private int indexInParent;
+		private Object state;
+
+		ArrayListNode(ArrayListNode parent) {
+			this.parent = parent;
+			if (parent != null) {
+				if (parent.children.isEmpty()) {
+					parent.children = new ArrayList<>();
+				}
+				indexInParent = parent.children.size();
+				parent.children.add(this);
+			}
+		}
+	}
+
+	/** Asserts that every node's index in its parent is correct. */
+	private static void assertIndices(TreeNode<?> root) {
+		TreeStream.depthFirst(TreeNode.treeDef(), root).forEach(node -> {
+			for (int i = 0; i < node.getChildren().size(); ++i) {
+				Assert.assertEquals(i, node.getChildren().get(i).getIndexInParent());
+			}
+		});
+	}
+
+	private static <T> List<T> contents(TreeNode<T> node) {
+		return node.getChildren().stream().map(TreeNode::getContent).collect(Collectors.toList());
+	}
+
+	private static void assertThrows(Class<? extends Exception> expected, Runnable runnable) {
+		try {
+			runnable.run();
+			Assert.fail("Expected " + expected);
+		} catch (Exception e) {
+			Assert.assertEquals(expected, e.getClass());
+		}
+	}
+
+	private static TreeNode<String> createRootWith(Consumer<TreeNode<String>> modifier) {
+		TreeNode<String> root = createRoot();
+		modifier.accept(root);
+		return root;
+	}
+
+	private static void assertSameFind(TreeNode<String> unindexed, TreeNode<String> indexed, String content) {
+		try {
+			TreeNode<String> expected = unindexed.findByContent(content);
+			Assert.assertEquals(indexPath(expected), indexPath(indexed.findByContent(content)));
+		} catch (IllegalArgumentException e) {
+			assertNotFound(indexed, content);
+		}
+	}
+
+	/** Returns the index of each node within its parent, from the root down, to tell apart nodes with the same path. */
+	private static List<Integer> indexPath(TreeNode<String> node) {
+		List<Integer> path = new ArrayList<>();
+		while (node.getParent() != null) {
+			path.add(0, node.getParent().getChildren().indexOf(node));
+			node = node.getParent();
+		}
+		return path;
+	}
+
+	private static void assertNotFound(TreeNode<String> node, String content) {
+		try {
+			node.findByContent(content);
+			Assert.fail("Expected " + content + " to be missing");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	// @formatter:off
+	private static TreeNode<String> createRoot() {
+		return TreeNode.createTestData(
+				"root",
+				" src",
+				"  Main.java",
+				"  deeper",
+				"   dup",
+				" test",
+				"  MainTest.java",
+				"  dup",
+				"  dup");
+	}
+	// @formatter:on
+}
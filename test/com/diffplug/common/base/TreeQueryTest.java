@@ -15,8 +15,16 @@
  */
 package com.diffplug.common.base;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -44,6 +52,10 @@ public class TreeQueryTest {
 
 		// test the intersection case
 		lcaTestCase(matrixJava, arrayJava, root.findByPath("src", "org", "math"));
+		lcaTestCase(arrayJava, root.findByContent("allegro.avl"), root);
+
+		// test the disjoint case
+		Assert.assertFalse(TreeQuery.lowestCommonAncestor(TreeNode.treeDef(), arrayJava, new TreeNode<>(null, "other")).isPresent());
 	}
 
 	private void lcaTestCase(TreeNode<String> a, TreeNode<String> b, TreeNode<String> expected) {
@@ -57,6 +69,28 @@ public class TreeQueryTest {
 		Assert.assertEquals("root/test/org2/avl/allegro.avl", TreeQuery.path(TreeNode.treeDef(), root.findByContent("allegro.avl"), TreeNode::getContent));
 	}
 
+	@Test
+	public void testPathIndex() {
+		TreeQuery.PathIndex<TreeNode<String>, String> index = TreeNode.pathIndex();
+		for (TreeNode<String> node : TreeIterable.depthFirst(TreeNode.treeDef(), root)) {
+			List<String> path = TreeQuery.toRoot(TreeNode.treeDef(), node).stream()
+					.map(TreeNode::getContent)
+					.collect(Collectors.toList());
+			Collections.reverse(path);
+			path = path.subList(1, path.size());
+			Assert.assertEquals(node, root.findByPath(index, path));
+			Assert.assertEquals(root.findByPath(path), root.findByPath(index, path));
+		}
+		Assert.assertFalse(index.findByPath(root, Arrays.asList("src", "nope")).isPresent());
+
+		// the index must be invalidated when the tree changes
+		TreeNode<String> math = root.findByPath(index, Arrays.asList("src", "org", "math"));
+		math.findByContent("Array.java").removeFromParent();
+		Assert.assertTrue(index.findByPath(root, Arrays.asList("src", "org", "math", "Array.java")).isPresent());
+		index.invalidate(math);
+		Assert.assertFalse(index.findByPath(root, Arrays.asList("src", "org", "math", "Array.java")).isPresent());
+	}
+
 	@Test
 	public void testToString() {
 		// put the testData into its string form
@@ -79,6 +113,26 @@ public class TreeQueryTest {
 		testCaseCopyLeavesIn(new TreeNode<>(null, ""));
 	}
 
+	@Test
+	public void testCopyLeavesInParallel() {
+		final class Node {
+			final String value;
+			final List<Node> children;
+
+			public Node(String value, List<Node> children) {
+				this.value = value;
+				this.children = children;
+			}
+		}
+		TreeDef<Node> def = TreeDef.of(node -> node.children);
+		for (int forkDepth = 0; forkDepth < 6; ++forkDepth) {
+			Node copy = TreeQuery.copyLeavesInParallel(TreeNode.treeDef(), root, (oldNode, children) -> {
+				return new Node(oldNode.getContent(), children);
+			}, ForkJoinPool.commonPool(), forkDepth);
+			TreeComparison.of(root, def, copy, node -> node.value).assertEqual();
+		}
+	}
+
 	private void testCaseCopyLeavesIn(TreeNode<String> copyRoot) {
 		final class Node {
 			final String value;
@@ -125,6 +179,209 @@ public class TreeQueryTest {
 		TreeComparison.of(copyRoot, def, copy, node -> node.value).assertEqual();
 	}
 
+	/** A tree which is a single chain of {@code depth} nodes, deep enough to overflow a recursive algorithm. */
+	static TreeDef<Integer> deepChain(int depth) {
+		return TreeDef.of(i -> i < depth - 1 ? Collections.singletonList(i + 1) : Collections.emptyList());
+	}
+
+	@Test
+	public void testDeepTree() throws IOException {
+		int depth = 100_000;
+		TreeDef<Integer> def = deepChain(depth);
+
+		Integer leafCount = TreeQuery.copyLeavesIn(def, 0, (node, children) -> {
+			return children.isEmpty() ? 1 : children.get(0);
+		});
+		Assert.assertEquals(1, leafCount.intValue());
+
+		TreeNode<Integer> copy = TreeQuery.copyRootOut(def, 0, (node, parent) -> {
+			return new TreeNode<>(parent, node);
+		});
+		Assert.assertEquals(depth - 1, TreeQuery.toRoot(TreeNode.treeDef(), copy.findByContent(depth - 1)).size() - 1);
+
+		// an empty indent, so that the string doesn't grow quadratically
+		String[] lines = TreeQuery.toString(def, 0, Object::toString, "").split("\n");
+		Assert.assertEquals(depth, lines.length);
+		Assert.assertEquals("3", lines[3]);
+
+		// a real indent makes the rendering quadratic, but print only needs to hold one indentation
+		int indentChars = 2;
+		long[] indentationWritten = new long[1];
+		TreeQuery.print(def, 0, Object::toString, "  ", new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				indentationWritten[0] += len;
+			}
+
+			@Override
+			public void write(String str) {
+				// the names and newlines
+			}
+
+			@Override
+			public void flush() {}
+
+			@Override
+			public void close() {}
+		});
+		long expectedIndentation = (long) indentChars * depth * (depth - 1) / 2;
+		Assert.assertEquals(expectedIndentation, indentationWritten[0]);
+	}
+
+	@Test
+	public void testPrint() throws IOException {
+		TreeDef<TreeNode<String>> def = TreeNode.treeDef();
+		String expected = StringPrinter.buildStringFromLines(
+				"root",
+				"  src",
+				"    org");
+		TreeNode<String> tree = TreeNode.createTestData("root", " src", "  org");
+		Assert.assertEquals(expected, TreeQuery.toString(def, tree, TreeNode::getContent, "  "));
+		StringBuilder builder = new StringBuilder();
+		TreeQuery.print(def, tree, TreeNode::getContent, "  ", builder);
+		Assert.assertEquals(expected, builder.toString());
+		Assert.assertEquals(expected, StringPrinter.buildString(printer -> TreeQuery.print(def, tree, TreeNode::getContent, "  ", printer)));
+		// matches the default indent of toStringDeep
+		Assert.assertEquals(root.toStringDeep(), StringPrinter.buildString(printer -> TreeQuery.print(def, root, TreeNode::getContent, " ", printer)));
+
+		int depth = 2_000;
+		long[] length = new long[1];
+		TreeQuery.print(deepChain(depth), 0, Object::toString, " ", new StringPrinter(str -> length[0] += str.length()).toWriter());
+		long expectedLength = 0;
+		for (int i = 0; i < depth; ++i) {
+			expectedLength += i + Integer.toString(i).length() + 1;
+		}
+		Assert.assertEquals(expectedLength, length[0]);
+	}
+
+	@Test
+	public void testForEachPath() {
+		List<String> paths = new ArrayList<>();
+		TreeQuery.forEachPath(TreeNode.treeDef(), root, TreeNode::getContent, "/", (node, path) -> {
+			Assert.assertEquals(TreeQuery.path(TreeNode.treeDef(), node, TreeNode::getContent), path);
+			paths.add(path);
+		});
+		Assert.assertEquals(TreeStream.depthFirst(TreeNode.treeDef(), root).map(TreeNode::getPath).collect(Collectors.toList()), paths);
+		// paths start at the given root
+		List<String> subPaths = new ArrayList<>();
+		TreeQuery.forEachPath(TreeNode.treeDef(), root.findByContent("math"), TreeNode::getContent, ".", (node, path) -> subPaths.add(path));
+		Assert.assertEquals(Arrays.asList("math", "math.Array.java", "math.Matrix.java", "math.QuatRot.java", "math.Vector.java"), subPaths);
+	}
+
+	@Test
+	public void testPathCache() {
+		List<TreeNode<String>> named = new ArrayList<>();
+		TreeQuery.PathCache<TreeNode<String>> cache = TreeQuery.pathCache(TreeNode.treeDef(), node -> {
+			named.add(node);
+			return node.getContent();
+		}, "/");
+		TreeNode<String> vector = root.findByContent("Vector.java");
+		Assert.assertEquals("root/src/org/math/Vector.java", cache.path(vector));
+		Assert.assertEquals(5, named.size());
+		// the ancestors were cached along the way
+		named.clear();
+		Assert.assertEquals("root/src/org/math", cache.path(vector.getParent()));
+		Assert.assertEquals("root/src/org/math/Matrix.java", cache.path(root.findByContent("Matrix.java")));
+		Assert.assertEquals(Arrays.asList(root.findByContent("Matrix.java")), named);
+		// renaming requires invalidating the node and its descendants
+		TreeNode<String> math = root.findByContent("math");
+		math.setContent("mathematics");
+		cache.invalidate(math);
+		Assert.assertEquals("root/src/org/mathematics/Vector.java", cache.path(vector));
+		cache.invalidateAll();
+		Assert.assertEquals("root", cache.path(root));
+	}
+
+	@Test
+	public void testPathCacheForSnapshot() {
+		// a snapshot's Integer handles above 127 are new objects every time, so the cache must be keyed by equals
+		TreeSnapshot<Integer> snapshot = TreeSnapshot.of(deepChain(300), 0);
+		List<Integer> named = new ArrayList<>();
+		TreeQuery.PathCache<Integer> cache = TreeQuery.pathCache(snapshot.treeDef(), node -> {
+			named.add(node);
+			return snapshot.contentOf(node).toString();
+		}, "/");
+		String path = cache.path(299);
+		Assert.assertEquals(300, named.size());
+		Assert.assertTrue(path.endsWith("/298/299"));
+		named.clear();
+		Assert.assertEquals(path, cache.path(snapshot.treeDef().childrenOf(298).get(0)));
+		Assert.assertEquals(Collections.emptyList(), named);
+		// invalidating a new but equal handle forgets it and its descendants
+		cache.invalidate(200);
+		Assert.assertEquals(path, cache.path(299));
+		Assert.assertEquals(100, named.size());
+	}
+
+	@Test
+	public void testBulkAncestry() {
+		List<TreeNode<String>> all = TreeStream.depthFirst(TreeNode.treeDef(), root).collect(Collectors.toList());
+		List<TreeNode<String>> ancestors = nodes("math", "generic", "model", "avl", "RunAllTests.java");
+		// filterDescendantsOf must agree with isDescendantOf
+		List<TreeNode<String>> expected = all.stream()
+				.filter(node -> ancestors.stream().anyMatch(ancestor -> TreeQuery.isDescendantOf(TreeNode.treeDef(), node, ancestor)))
+				.collect(Collectors.toList());
+		Assert.assertEquals(expected, TreeQuery.filterDescendantsOf(TreeNode.treeDef(), all, ancestors));
+		Assert.assertEquals(nodes("Array.java", "PerturbDerivative3.java"),
+				TreeQuery.filterDescendantsOf(TreeNode.treeDef(), nodes("root", "Array.java", "math", "PerturbDerivative3.java", "complex.mdl"), ancestors));
+
+		// model is above generic, so it gets all of them
+		Map<TreeNode<String>, List<TreeNode<String>>> groups = TreeQuery.groupByTopmostAncestor(TreeNode.treeDef(),
+				nodes("Constant.java", "Vector.java", "generic", "complex.mdl", "b737.avl", "Component.java"), ancestors);
+		Assert.assertEquals(nodes("model", "math", "avl"), new ArrayList<>(groups.keySet()));
+		Assert.assertEquals(nodes("Constant.java", "generic", "Component.java"), groups.get(root.findByContent("model")));
+		Assert.assertEquals(nodes("Vector.java"), groups.get(root.findByContent("math")));
+		Assert.assertEquals(nodes("b737.avl"), groups.get(root.findByContent("avl")));
+
+		Assert.assertEquals(nodes("math", "model", "avl", "RunAllTests.java"), TreeQuery.minimalCoveringRoots(TreeNode.treeDef(), ancestors));
+		Assert.assertEquals(nodes("test", "src"), TreeQuery.minimalCoveringRoots(TreeNode.treeDef(), nodes("avl", "test", "src", "test", "Vector.java")));
+		Assert.assertEquals(Arrays.asList(root), TreeQuery.minimalCoveringRoots(TreeNode.treeDef(), all));
+	}
+
+	private List<TreeNode<String>> nodes(String... contents) {
+		return Arrays.stream(contents).map(root::findByContent).collect(Collectors.toList());
+	}
+
+	@Test
+	public void testAggregate() {
+		TreeDef<TreeNode<String>> def = TreeNode.treeDef();
+		Assert.assertEquals(TreeStream.depthFirst(def, root).count(), TreeQuery.aggregate(def, root, node -> 1L, Long::sum).longValue());
+		Assert.assertEquals(6, TreeQuery.aggregate(def, root, node -> 0, (height, childHeight) -> Math.max(height, childHeight + 1)).intValue());
+		// children are combined in order, so the combination doesn't need to be commutative
+		String expected = TreeStream.depthFirst(def, root).map(TreeNode::getContent).collect(Collectors.joining(","));
+		BiFunction<String, String, String> concat = (value, child) -> value + "," + child;
+		Assert.assertEquals(expected, TreeQuery.aggregate(def, root, TreeNode::getContent, concat));
+
+		Map<TreeNode<String>, Integer> sizes = TreeQuery.aggregateAll(def, root, node -> 1, Integer::sum);
+		Assert.assertEquals(TreeStream.depthFirst(def, root).count(), sizes.size());
+		Assert.assertEquals(5, sizes.get(root.findByContent("math")).intValue());
+		Assert.assertEquals(1, sizes.get(root.findByContent("Vector.java")).intValue());
+
+		List<String> postOrder = new ArrayList<>();
+		TreeQuery.forEachAggregate(def, root.findByContent("math"), node -> 1, Integer::sum, (node, size) -> postOrder.add(node.getContent() + "=" + size));
+		Assert.assertEquals(Arrays.asList("Array.java=1", "Matrix.java=1", "QuatRot.java=1", "Vector.java=1", "math=5"), postOrder);
+		// the stream is the same post-order, and the map iterates in that order too
+		Assert.assertEquals(postOrder, TreeQuery.aggregateStream(def, root.findByContent("math"), node -> 1, Integer::sum)
+				.map(entry -> entry.getKey().getContent() + "=" + entry.getValue()).collect(Collectors.toList()));
+		Assert.assertEquals(postOrder, TreeQuery.aggregateAll(def, root.findByContent("math"), node -> 1, Integer::sum).entrySet().stream()
+				.map(entry -> entry.getKey().getContent() + "=" + entry.getValue()).collect(Collectors.toList()));
+		// and it's lazy, so it can stop early on an infinite tree
+		TreeDef<Integer> infinite = TreeDef.of(i -> i < 0 ? Collections.emptyList() : Arrays.asList(-1, i + 1));
+		Assert.assertEquals(Integer.valueOf(-1), TreeQuery.aggregateStream(infinite, 0, node -> 1, Integer::sum).findFirst().get().getKey());
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int forkDepth = 0; forkDepth < 6; ++forkDepth) {
+				Assert.assertEquals(expected, TreeQuery.aggregateParallel(def, root, TreeNode::getContent, concat, pool, forkDepth));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		int depth = 100_000;
+		Assert.assertEquals(depth - 1, TreeQuery.aggregate(deepChain(depth), 0, node -> 0, (height, childHeight) -> Math.max(height, childHeight + 1)).intValue());
+	}
+
 	@Test
 	public void testIsDescendantOf() {
 		testCaseIsDescendantOf("root", "root", false);
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TreeSnapshotTest {
+	@Test
+	public void testStructure() {
+		TreeSnapshot<TreeNode<String>> snapshot = TreeSnapshot.of(TreeNode.treeDef(), root);
+		Assert.assertEquals(12, snapshot.size());
+		TreeComparison.of(root, snapshot.treeDef(), snapshot.root(), i -> snapshot.contentOf(i).getContent()).assertEqual();
+
+		// nodes are numbered in depth-first order
+		List<TreeNode<String>> depthFirst = TreeStream.depthFirst(TreeNode.treeDef(), root).collect(Collectors.toList());
+		for (int i = 0; i < snapshot.size(); ++i) {
+			TreeNode<String> node = depthFirst.get(i);
+			Assert.assertEquals(node, snapshot.contentOf(i));
+			Assert.assertEquals(TreeQuery.toRoot(TreeNode.treeDef(), node).size() - 1, snapshot.depthOf(i));
+			Assert.assertEquals(TreeStream.depthFirst(TreeNode.treeDef(), node).count(), snapshot.subtreeSizeOf(i));
+			Assert.assertEquals(node.getChildren().size(), snapshot.childCount(i));
+			int parent = snapshot.parentOf(i);
+			Assert.assertEquals(node.getParent(), parent == TreeSnapshot.NONE ? null : snapshot.contentOf(parent));
+		}
+		Assert.assertEquals(TreeSnapshot.NONE, snapshot.parentOf(snapshot.root()));
+	}
+
+	@Test
+	public void testSiblings() {
+		TreeSnapshot<String> snapshot = TreeSnapshot.of(TreeNode.treeDef(), root).map(TreeNode::getContent);
+		int src = snapshot.firstChildOf(snapshot.root());
+		Assert.assertEquals("src", snapshot.contentOf(src));
+		Assert.assertEquals(Arrays.asList("src", "test", "RunAllTests.java"), siblings(snapshot, src));
+		int math = snapshot.firstChildOf(snapshot.firstChildOf(src));
+		Assert.assertEquals(Arrays.asList("math", "model"), siblings(snapshot, math));
+		Assert.assertEquals(Arrays.asList("Array.java", "Matrix.java"), siblings(snapshot, snapshot.firstChildOf(math)));
+		Assert.assertEquals(TreeSnapshot.NONE, snapshot.firstChildOf(snapshot.firstChildOf(math)));
+		Assert.assertEquals("Matrix.java", snapshot.contentOf(snapshot.childOf(math, 1)));
+	}
+
+	private static List<String> siblings(TreeSnapshot<String> snapshot, int first) {
+		List<String> siblings = new ArrayList<>();
+		for (int node = first; node != TreeSnapshot.NONE; node = snapshot.nextSiblingOf(node)) {
+			siblings.add(snapshot.contentOf(node));
+		}
+		return siblings;
+	}
+
+	@Test
+	public void testIsDescendantOf() {
+		TreeSnapshot<TreeNode<String>> snapshot = TreeSnapshot.of(TreeNode.treeDef(), root);
+		for (int child = 0; child < snapshot.size(); ++child) {
+			for (int parent = 0; parent < snapshot.size(); ++parent) {
+				TreeNode<String> childNode = snapshot.contentOf(child);
+				TreeNode<String> parentNode = snapshot.contentOf(parent);
+				Assert.assertEquals(TreeQuery.isDescendantOf(TreeNode.treeDef(), childNode, parentNode), snapshot.isDescendantOf(child, parent));
+				Assert.assertEquals(TreeQuery.isDescendantOfOrEqualTo(TreeNode.treeDef(), childNode, parentNode), snapshot.isDescendantOfOrEqualTo(child, parent));
+				Assert.assertEquals(TreeQuery.isDescendantOf(TreeNode.treeDef(), childNode, parentNode), TreeQuery.isDescendantOf(snapshot.treeDef(), child, parent));
+			}
+		}
+	}
+
+	@Test
+	public void testLowestCommonAncestor() {
+		TreeSnapshot<TreeNode<String>> snapshot = TreeSnapshot.of(TreeNode.treeDef(), root);
+		TreeSnapshot<TreeNode<String>>.LcaIndex index = snapshot.lcaIndex();
+		for (int a = 0; a < snapshot.size(); ++a) {
+			for (int b = 0; b < snapshot.size(); ++b) {
+				TreeNode<String> expected = TreeQuery.lowestCommonAncestor(TreeNode.treeDef(), snapshot.contentOf(a), snapshot.contentOf(b)).get();
+				Assert.assertEquals(expected, snapshot.contentOf(index.lowestCommonAncestor(a, b)));
+			}
+		}
+		int array = snapshot.indexOf(root.findByContent("Array.java"));
+		int constant = snapshot.indexOf(root.findByContent("Constant.java"));
+		int matrix = snapshot.indexOf(root.findByContent("Matrix.java"));
+		Assert.assertEquals("org", snapshot.contentOf(index.lowestCommonAncestor(array, constant, matrix)).getContent());
+		Assert.assertEquals(TreeSnapshot.NONE, index.lowestCommonAncestor());
+		Assert.assertEquals(TreeSnapshot.NONE, snapshot.indexOf(new TreeNode<>(null, "unrelated")));
+	}
+
+	@Test
+	public void testDeepTree() {
+		TreeSnapshot<Integer> snapshot = TreeSnapshot.of(TreeQueryTest.deepChain(100_000), 0);
+		Assert.assertEquals(100_000, snapshot.size());
+		Assert.assertEquals(99_999, snapshot.depthOf(99_999));
+		Assert.assertTrue(snapshot.isDescendantOf(99_999, 0));
+		Assert.assertEquals(50_000, snapshot.lcaIndex().lowestCommonAncestor(50_000, 99_999));
+	}
+
+	// @formatter:off
+	private TreeNode<String> root = TreeNode.createTestData(
+			"root",
+			" src",
+			"  org",
+			"   math",
+			"    Array.java",
+			"    Matrix.java",
+			"   model",
+			"    generic",
+			"     Constant.java",
+			" test",
+			"  org2",
+			" RunAllTests.java"
+			);
+	// @formatter:on
+}
@@ -15,12 +15,33 @@
  */
 package com.diffplug.common.base;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.diffplug.common.base.TreeNode;
 import com.diffplug.common.base.TreeStream;
@@ -82,6 +103,73 @@ public class TreeStreamTest {
 		Assert.assertEquals(Arrays.asList(values), actual.subList(1, actual.size()));
 	}
 
+	@Test
+	public void nonRandomAccessTest() {
+		// a TreeDef whose child lists are LinkedLists
+		TreeDef<TreeNode<String>> linkedDef = TreeDef.of(node -> new LinkedList<>(node.getChildren()));
+		depthFirstTestCase(linkedDef, "root", "A", "B", "C", "1", "2", "3", "a");
+		List<String> breadthFirst = TreeStream.breadthFirst(linkedDef, testData)
+				.map(TreeNode::getContent)
+				.collect(Collectors.toList());
+		Assert.assertEquals(Arrays.asList("root", "A", "1", "B", "2", "C", "3", "a"), breadthFirst);
+	}
+
+	@Test
+	public void modifiedDuringIterationTest() {
+		// every node is removed as it's visited, which must not disturb the iteration
+		TreeNode<String> depthRoot = TreeNode.createTestData("root", " a", "  b", " c", " d");
+		List<String> depthFirst = new ArrayList<>();
+		for (TreeNode<String> node : TreeIterable.depthFirst(TreeNode.treeDef(), depthRoot)) {
+			depthFirst.add(node.getContent());
+			if (node != depthRoot) {
+				node.removeFromParent();
+			}
+		}
+		Assert.assertEquals(Arrays.asList("root", "a", "b", "c", "d"), depthFirst);
+
+		TreeNode<String> breadthRoot = TreeNode.createTestData("root", " a", "  b", " c", " d");
+		List<String> breadthFirst = new ArrayList<>();
+		for (TreeNode<String> node : TreeIterable.breadthFirst(TreeNode.treeDef(), breadthRoot)) {
+			breadthFirst.add(node.getContent());
+			if (node != breadthRoot) {
+				node.removeFromParent();
+			}
+		}
+		Assert.assertEquals(Arrays.asList("root", "a", "c", "d", "b"), breadthFirst);
+
+		// and children which are added to a visited node aren't seen
+		TreeNode<String> addRoot = TreeNode.createTestData("root", " a", " b");
+		List<String> added = new ArrayList<>();
+		for (TreeNode<String> node : TreeIterable.depthFirst(TreeNode.treeDef(), addRoot)) {
+			added.add(node.getContent());
+			new TreeNode<>(node.getParent() == null ? node : node.getParent(), "new");
+		}
+		Assert.assertEquals(Arrays.asList("root", "a", "b"), added);
+	}
+
+	@Test
+	public void lazyTest() {
+		// every node has infinitely many children, which would hang a TreeDef that returns a List
+		TreeDef.Lazy<String> infinite = node -> IntStream.iterate(0, i -> i + 1).mapToObj(i -> node + "/" + i).iterator();
+		Assert.assertEquals(Arrays.asList("", "/0", "/0/0", "/0/0/0"),
+				TreeStream.depthFirst(infinite, "").limit(4).collect(Collectors.toList()));
+		Assert.assertEquals(Arrays.asList("", "/0", "/1", "/2"),
+				TreeStream.breadthFirst(infinite, "").limit(4).collect(Collectors.toList()));
+		// filtering stays lazy
+		Assert.assertEquals(Arrays.asList("", "/1", "/3", "/5"),
+				TreeStream.breadthFirst(infinite.filter(node -> node.endsWith("1") || node.endsWith("3") || node.endsWith("5") || node.isEmpty()), "")
+						.limit(4).collect(Collectors.toList()));
+		// so does findByPath
+		Assert.assertEquals("/7/3", TreeQuery.findByPath(infinite, "", Arrays.asList("7", "3"), (node, segment) -> node.endsWith("/" + segment)).get());
+
+		// a finite lazy tree matches its materialized counterpart
+		TreeDef.Lazy<TreeNode<String>> lazyDef = node -> node.getChildren().iterator();
+		depthFirstTestCase(lazyDef, "root", "A", "B", "C", "1", "2", "3", "a");
+		Assert.assertEquals(TreeStream.breadthFirst(TreeNode.treeDef(), testData).collect(Collectors.toList()),
+				TreeStream.breadthFirst(lazyDef, testData).collect(Collectors.toList()));
+		Assert.assertEquals(testData.getChildren(), lazyDef.childrenOf(testData));
+	}
+
 	@Test
 	public void filterTest() {
 		// filter out non-alphabetic nodes
@@ -89,6 +177,203 @@ public class TreeStreamTest {
 				"root", "A", "B", "C");
 	}
 
+	@Test
+	public void postOrderTest() {
+		Assert.assertEquals(Arrays.asList("C", "B", "A", "3", "a", "2", "1", "root"),
+				TreeStream.postOrder(TreeNode.treeDef(), testData).map(TreeNode::getContent).collect(Collectors.toList()));
+		Assert.assertEquals(Arrays.asList("C", "B", "A"),
+				TreeStream.postOrder(TreeNode.treeDef(), getNode("A")).map(TreeNode::getContent).collect(Collectors.toList()));
+		// deep trees are fine
+		Assert.assertEquals(Integer.valueOf(99_999), TreeStream.postOrder(TreeQueryTest.deepChain(100_000), 0).findFirst().get());
+		Assert.assertEquals(100_000, TreeStream.postOrder(TreeQueryTest.deepChain(100_000), 0).count());
+	}
+
+	@Test
+	public void entriesTest() {
+		Assert.assertEquals(Arrays.asList("root:null:0", "A:root:1", "B:A:2", "C:B:3", "1:root:1", "2:1:2", "3:2:3", "a:2:3"),
+				TreeStream.depthFirstEntries(TreeNode.treeDef(), testData).map(TreeStreamTest::describe).collect(Collectors.toList()));
+		Assert.assertEquals(Arrays.asList("C:B:3", "B:A:2", "A:root:1", "3:2:3", "a:2:3", "2:1:2", "1:root:1", "root:null:0"),
+				TreeStream.postOrderEntries(TreeNode.treeDef(), testData).map(TreeStreamTest::describe).collect(Collectors.toList()));
+		// depth and parent are relative to the start of the traversal
+		Assert.assertEquals(Arrays.asList("1:null:0", "2:1:1", "3:2:2", "a:2:2"),
+				TreeStream.depthFirstEntries(TreeNode.treeDef(), getNode("1")).map(TreeStreamTest::describe).collect(Collectors.toList()));
+
+		// the size of every subtree, in one pass
+		Map<TreeNode<String>, Integer> sizes = new HashMap<>();
+		TreeStream.postOrderEntries(TreeNode.treeDef(), testData).forEach(entry -> {
+			int size = sizes.merge(entry.getNode(), 1, Integer::sum);
+			if (entry.getParent() != null) {
+				sizes.merge(entry.getParent(), size, Integer::sum);
+			}
+		});
+		Assert.assertEquals(8, sizes.get(testData).intValue());
+		Assert.assertEquals(4, sizes.get(getNode("1")).intValue());
+		Assert.assertEquals(1, sizes.get(getNode("a")).intValue());
+	}
+
+	private static String describe(TreeEntry<TreeNode<String>> entry) {
+		return entry.getNode().getContent() + ":" + (entry.getParent() == null ? null : entry.getParent().getContent()) + ":" + entry.getDepth();
+	}
+
+	@Test
+	public void visitorTest() {
+		List<String> events = new ArrayList<>();
+		TreeVisitor<TreeNode<String>> visitor = recordingVisitor(events, "1", "none");
+		Assert.assertEquals(Arrays.asList("root", "A", "B", "C", "1"),
+				TreeStream.depthFirst(TreeNode.treeDef(), testData, visitor).map(TreeNode::getContent).collect(Collectors.toList()));
+		Assert.assertEquals(Arrays.asList("pre root", "pre A", "pre B", "pre C", "post C", "post B", "post A", "pre 1", "post root"), events);
+		// the walk is the same as the stream
+		events.clear();
+		Assert.assertTrue(TreeQuery.walk(TreeNode.treeDef(), testData, visitor));
+		Assert.assertEquals(Arrays.asList("pre root", "pre A", "pre B", "pre C", "post C", "post B", "post A", "pre 1", "post root"), events);
+
+		// terminating ends the traversal without returning the terminating node
+		events.clear();
+		visitor = recordingVisitor(events, "none", "2");
+		Assert.assertEquals(Arrays.asList("root", "A", "B", "C", "1"),
+				TreeStream.depthFirst(TreeNode.treeDef(), testData, visitor).map(TreeNode::getContent).collect(Collectors.toList()));
+		Assert.assertEquals(Arrays.asList("pre root", "pre A", "pre B", "pre C", "post C", "post B", "post A", "pre 1", "pre 2"), events);
+		events.clear();
+		Assert.assertFalse(TreeQuery.walk(TreeNode.treeDef(), testData, visitor));
+		Assert.assertEquals(Arrays.asList("pre root", "pre A", "pre B", "pre C", "post C", "post B", "post A", "pre 1", "pre 2"), events);
+
+		// pruning an infinite tree makes it finite, without ever expanding the pruned subtrees
+		TreeDef.Lazy<String> infinite = node -> IntStream.iterate(0, i -> i + 1).limit(node.length() < 4 ? 3 : Long.MAX_VALUE).mapToObj(i -> node + "/" + i).iterator();
+		Assert.assertEquals(1 + 3 + 9, TreeStream.depthFirst(infinite, "", TreeVisitor.descendingInto(node -> node.length() < 4)).count());
+	}
+
+	/** Returns a visitor which records its events, skips the subtree of {@code skip}, and terminates at {@code terminate}. */
+	private static TreeVisitor<TreeNode<String>> recordingVisitor(List<String> events, String skip, String terminate) {
+		return new TreeVisitor<TreeNode<String>>() {
+			@Override
+			public Result preVisit(TreeNode<String> node) {
+				events.add("pre " + node.getContent());
+				if (node.getContent().equals(skip)) {
+					return Result.SKIP_SUBTREE;
+				} else if (node.getContent().equals(terminate)) {
+					return Result.TERMINATE;
+				} else {
+					return Result.CONTINUE;
+				}
+			}
+
+			@Override
+			public Result postVisit(TreeNode<String> node) {
+				events.add("post " + node.getContent());
+				return Result.CONTINUE;
+			}
+		};
+	}
+
+	@Test
+	public void parallelTest() {
+		// a tree which is big enough to be worth splitting
+		TreeDef<Integer> treeDef = TreeDef.of(i -> i < 10_000 ? Arrays.asList(3 * i + 1, 3 * i + 2, 3 * i + 3) : Collections.emptyList());
+		List<Integer> depthFirst = TreeStream.depthFirst(treeDef, 0).collect(Collectors.toList());
+		Assert.assertEquals(30_001, depthFirst.size());
+		// parallelDepthFirst is ordered
+		Assert.assertEquals(depthFirst, TreeStream.parallelDepthFirst(treeDef, 0).collect(Collectors.toList()));
+		// parallelBreadthFirst is not
+		Assert.assertEquals(new HashSet<>(depthFirst), TreeStream.parallelBreadthFirst(treeDef, 0).collect(Collectors.toSet()));
+		Assert.assertEquals(depthFirst.size(), TreeStream.parallelBreadthFirst(treeDef, 0).count());
+
+		// and they still work on the small test tree
+		Assert.assertEquals(TreeStream.depthFirst(TreeNode.treeDef(), testData).collect(Collectors.toList()),
+				TreeStream.parallelDepthFirst(TreeNode.treeDef(), testData).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void parallelDiscoverTest() {
+		Set<TreeNode<String>> expected = TreeStream.depthFirst(TreeNode.treeDef(), testData).collect(Collectors.toSet());
+		try (Stream<TreeNode<String>> stream = TreeStream.parallelDiscover(TreeNode.treeDef(), testData, ForkJoinPool.commonPool())) {
+			Assert.assertEquals(expected, stream.collect(Collectors.toSet()));
+		}
+	}
+
+	@Test
+	public void parallelDiscoverErrorTest() {
+		TreeDef<Integer> treeDef = TreeDef.of(i -> {
+			if (i == 5) {
+				throw new IllegalStateException("five");
+			}
+			return i < 100 ? Arrays.asList(2 * i + 1, 2 * i + 2) : Collections.emptyList();
+		});
+		try {
+			TreeStream.parallelDiscover(treeDef, 0, ForkJoinPool.commonPool()).count();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("five", e.getMessage());
+		}
+	}
+
+	@Test
+	public void parallelDiscoverBoundedTest() throws InterruptedException {
+		// a wide tree, where every listing is counted and announced
+		int capacity = 8;
+		AtomicInteger listed = new AtomicInteger();
+		AtomicInteger consumed = new AtomicInteger();
+		AtomicBoolean overran = new AtomicBoolean();
+		Semaphore listings = new Semaphore(0);
+		TreeDef<Integer> treeDef = TreeDef.of(i -> {
+			// a node is only listed after it has been buffered, so the walk can't list more than it has buffered
+			if (listed.incrementAndGet() > capacity + consumed.get()) {
+				overran.set(true);
+			}
+			listings.release();
+			return i < 100_000 ? IntStream.range(10 * i + 1, 10 * i + 11).boxed().collect(Collectors.toList()) : Collections.<Integer> emptyList();
+		});
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try (Stream<Integer> stream = TreeStream.parallelDiscover(treeDef, 0, pool, capacity)) {
+			Iterator<Integer> iterator = stream.iterator();
+			// the walk fills the buffer, and then lists exactly one more node for every node that is consumed
+			Assert.assertTrue(listings.tryAcquire(capacity, 10, TimeUnit.SECONDS));
+			for (int i = 0; i < 100; ++i) {
+				consumed.incrementAndGet();
+				iterator.next();
+				Assert.assertTrue(listings.tryAcquire(1, 10, TimeUnit.SECONDS));
+			}
+			Assert.assertFalse(overran.get());
+		}
+		// closing the stream stops the walk
+		Assert.assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+
+	@Test
+	public void parallelDiscoverClosedTest() {
+		// an infinite tree, whose walk can only end if it is cancelled
+		TreeDef<Long> infinite = TreeDef.of(i -> Arrays.asList(2 * i + 1, 2 * i + 2));
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try (Stream<Long> stream = TreeStream.parallelDiscover(infinite, 0L, pool, 16)) {
+			Assert.assertTrue(stream.findFirst().isPresent());
+		}
+		// closing the stream after a short-circuiting operation stops the walk
+		Assert.assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void parallelDiscoverPathTest() throws IOException {
+		Path root = folder.getRoot().toPath();
+		for (String dir : Arrays.asList("a/b/c", "a/d", "e")) {
+			Files.createDirectories(root.resolve(dir));
+		}
+		for (String file : Arrays.asList("a/b/c/1.txt", "a/d/2.txt", "a/d/3.txt", "4.txt")) {
+			Files.write(root.resolve(file), file.getBytes(StandardCharsets.UTF_8));
+		}
+		Set<Path> expected;
+		try (Stream<Path> walk = Files.walk(root)) {
+			expected = walk.collect(Collectors.toSet());
+		}
+		Assert.assertEquals(10, expected.size());
+		try (Stream<Path> stream = TreeStream.parallelDiscover(TreeDef.forPath(Errors.rethrow()), root, ForkJoinPool.commonPool())) {
+			Assert.assertEquals(expected, stream.collect(Collectors.toSet()));
+		}
+	}
+
 	private TreeNode<String> getNode(String name) {
 		return testData.findByContent(name);
 	}